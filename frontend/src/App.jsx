@@ -18,6 +18,8 @@ const categoryIcons = {
 
 function App() {
   const [tokens, setTokens] = useState(null)
+  // version of the counts the user is editing; sent back as If-Match on save
+  const [tokensEtag, setTokensEtag] = useState(null)
   const [error, setError] = useState(null)
   const [dirty, setDirty] = useState(false)
   const [theme, setTheme] = useState('dark')
@@ -30,13 +32,15 @@ function App() {
     level: 1,
   })
 
-  const handleAuth = (t) => {
+  const handleAuth = (t, refreshToken) => {
     localStorage.setItem('token', t)
+    if (refreshToken) localStorage.setItem('refreshToken', refreshToken)
     setAuthToken(t)
   }
 
   const logout = useCallback(() => {
     localStorage.removeItem('token')
+    localStorage.removeItem('refreshToken')
     setAuthToken(null)
     setTokens(null)
     setDirty(false)
@@ -44,6 +48,30 @@ function App() {
     setProfile({ cod_username: '', prestige: '', level: 1 })
   }, [])
 
+  // access tokens last an hour; trade the refresh token for a new one before giving up on the session
+  const refreshOrLogout = useCallback(() => {
+    const refreshToken = localStorage.getItem('refreshToken')
+    if (!refreshToken) {
+      logout()
+      return
+    }
+    fetch('/api/refresh', {
+      method: 'POST',
+      headers: { 'Content-Type': 'application/json' },
+      body: JSON.stringify({ refresh_token: refreshToken }),
+    })
+      .then((res) => {
+        if (!res.ok) throw new Error(`HTTP ${res.status}`)
+        return res.json()
+      })
+      .then((data) => {
+        localStorage.setItem('token', data.token)
+        localStorage.setItem('refreshToken', data.refresh_token)
+        setAuthToken(data.token)
+      })
+      .catch(() => logout())
+  }, [logout])
+
   useEffect(() => {
     if (dirty || !authToken) return
 
@@ -53,10 +81,11 @@ function App() {
       })
         .then((res) => {
           if (res.status === 401) {
-            logout()
+            refreshOrLogout()
             throw new Error('Unauthorized')
           }
           if (!res.ok) throw new Error(`HTTP ${res.status}`)
+          setTokensEtag(res.headers.get('ETag'))
           return res.json()
         })
         .then((data) => setTokens(data))
@@ -64,9 +93,15 @@ function App() {
     }
 
     fetchTokens()
-    const id = setInterval(fetchTokens, 5000)
-    return () => clearInterval(id)
-  }, [dirty, authToken, logout])
+    // the server pushes every later change; no polling needed
+    const events = new EventSource(`/api/events?access_token=${encodeURIComponent(authToken)}`)
+    events.addEventListener('tokens', (e) => {
+      const data = JSON.parse(e.data)
+      setTokens(data.tokens)
+      setTokensEtag(data.etag)
+    })
+    return () => events.close()
+  }, [dirty, authToken, refreshOrLogout])
 
   useEffect(() => {
     document.documentElement.className = theme
@@ -77,7 +112,7 @@ function App() {
     fetch('/api/profile', { headers: { Authorization: `Bearer ${authToken}` } })
       .then((res) => {
         if (res.status === 401) {
-          logout()
+          refreshOrLogout()
           throw new Error('Unauthorized')
         }
         if (!res.ok) throw new Error(`HTTP ${res.status}`)
@@ -85,7 +120,7 @@ function App() {
       })
       .then((data) => setProfile(data))
       .catch((err) => setError(err.message))
-  }, [authToken, logout])
+  }, [authToken, refreshOrLogout])
 
   const adjustToken = (category, idx, delta) => {
     const current = tokens[category][idx]
@@ -125,15 +160,26 @@ function App() {
       headers: {
         'Content-Type': 'application/json',
         Authorization: `Bearer ${authToken}`,
+        ...(tokensEtag ? { 'If-Match': tokensEtag } : {}),
       },
       body: JSON.stringify(tokens),
     })
       .then((res) => {
         if (res.status === 401) {
-          logout()
+          refreshOrLogout()
           throw new Error('Unauthorized')
         }
+        if (res.status === 409) {
+          // changed on another device: show the current counts instead of overwriting them
+          setTokensEtag(res.headers.get('ETag'))
+          setDirty(false)
+          return res.json().then((current) => {
+            setTokens(current)
+            throw new Error('Tokens were changed elsewhere; reloaded the latest counts')
+          })
+        }
         if (!res.ok) throw new Error(`HTTP ${res.status}`)
+        setTokensEtag(res.headers.get('ETag'))
         setDirty(false)
       })
       .catch((err) => setError(err.message))
@@ -155,7 +201,7 @@ function App() {
     })
       .then((res) => {
         if (res.status === 401) {
-          logout()
+          refreshOrLogout()
           throw new Error('Unauthorized')
         }
         if (!res.ok) throw new Error(`HTTP ${res.status}`)
@@ -18,7 +18,7 @@ export default function Login({ onAuth, switchToRegister }) {
       })
       .then((data) => {
         if (data.token) {
-          onAuth(data.token)
+          onAuth(data.token, data.refresh_token)
         } else {
           throw new Error('No token returned')
         }
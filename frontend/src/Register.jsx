@@ -22,7 +22,7 @@ export default function Register({ onAuth, switchToLogin }) {
       })
       .then((data) => {
         if (data.token) {
-          onAuth(data.token)
+          onAuth(data.token, data.refresh_token)
         } else {
           switchToLogin()
         }
@@ -0,0 +1,50 @@
+package com.codxp.tokens;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/** Temp data directories laid out like the repository root, for benchmarks. */
+final class BenchData {
+    static final String SAMPLE_USER = "{\n"
+            + "  \"password_hash\" : \"$2a$10$Ys98zA3a.1yHuHkkXDgqX.StYC1B00b6Aq6BFfI2Fh0Sxj7hr4YUO\",\n"
+            + "  \"tokens\" : {\n"
+            + "    \"regular\" : [ 66, 81, 25, 167 ],\n"
+            + "    \"weapon\" : [ 13, 50, 35, 81 ],\n"
+            + "    \"battlepass\" : [ 17, 11, 8, 22 ]\n"
+            + "  },\n"
+            + "  \"cod_username\" : \"bench\",\n"
+            + "  \"prestige\" : \"Master Prestige\",\n"
+            + "  \"level\" : 328\n"
+            + "}";
+
+    private BenchData() {
+    }
+
+    /** Create a temp root holding {@code data/users/}; its tokens file is {@code root/tokens.txt}. */
+    static Path createRoot() throws IOException {
+        Path root = Files.createTempDirectory("codxp-bench");
+        Files.createDirectories(root.resolve("data").resolve("users"));
+        return root;
+    }
+
+    static String tokensFile(Path root) {
+        return root.resolve("tokens.txt").toString();
+    }
+
+    static void writeUser(Path root, String username, String json) throws IOException {
+        Path file = root.resolve("data").resolve("users").resolve(username + ".json");
+        Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void delete(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.codxp.tokens;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Typed Jackson bindings with shared readers and writers ({@link Json},
+ * {@link UserFile}) against the untyped path they replaced: a fresh
+ * ObjectMapper, a {@code Map<String, Object>} tree with unchecked casts, and
+ * boxed {@code List<Integer>} counts. Run with {@code -prof gc} to compare
+ * {@code gc.alloc.rate.norm}, the bytes allocated per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+    private byte[] userFile;
+    private UserRecord record;
+    private int[] counts;
+
+    @Setup
+    public void setup() throws IOException {
+        userFile = BenchData.SAMPLE_USER.getBytes(StandardCharsets.UTF_8);
+        record = Json.USER_FILE_READER.<UserFile>readValue(userFile).toRecord("bench");
+        counts = record.tokens;
+    }
+
+    @Benchmark
+    public UserRecord readUserTyped() throws IOException {
+        return Json.USER_FILE_READER.<UserFile>readValue(userFile).toRecord("bench");
+    }
+
+    @Benchmark
+    public UserRecord readUserUntyped() throws IOException {
+        Map<String, Object> obj = new ObjectMapper().readValue(userFile, new TypeReference<LinkedHashMap<String, Object>>() {});
+        return untypedToRecord(obj);
+    }
+
+    @Benchmark
+    public byte[] writeUserTyped() throws IOException {
+        return Json.USER_FILE_WRITER.writeValueAsBytes(new UserFile().apply(record));
+    }
+
+    @Benchmark
+    public byte[] writeUserUntyped() throws IOException {
+        Map<String, Object> obj = new LinkedHashMap<>();
+        obj.put("password_hash", record.passwordHash);
+        Map<String, List<Integer>> tokens = new LinkedHashMap<>();
+        TokenLib.fromCounts(record.tokens).forEach((cat, vals) -> tokens.put(cat.key(), vals));
+        obj.put("tokens", tokens);
+        obj.put("cod_username", record.codUsername);
+        obj.put("prestige", record.prestige);
+        obj.put("level", record.level);
+        return new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsBytes(obj);
+    }
+
+    /** The {@code GET /tokens} response body as the server now builds it. */
+    @Benchmark
+    public byte[] tokensResponseTyped() throws IOException {
+        return Json.MAPPER.writeValueAsBytes(TokenServer.tokensJson(counts));
+    }
+
+    @Benchmark
+    public byte[] tokensResponseUntyped() throws IOException {
+        Map<String, List<Integer>> out = new LinkedHashMap<>();
+        TokenLib.fromCounts(counts).forEach((k, v) -> out.put(k.key(), v));
+        return new ObjectMapper().writeValueAsBytes(out);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static UserRecord untypedToRecord(Map<String, Object> obj) {
+        UserRecord r = new UserRecord("bench");
+        r.passwordHash = (String) obj.get("password_hash");
+        Map<String, Object> byCategory = (Map<String, Object>) obj.get("tokens");
+        int n = TokenLib.MINUTE_BUCKETS.length;
+        for (TokenCategory cat : TokenCategory.values()) {
+            List<Object> list = (List<Object>) byCategory.get(cat.key());
+            for (int i = 0; i < Math.min(n, list.size()); i++) {
+                r.tokens[cat.ordinal() * n + i] = ((Number) list.get(i)).intValue();
+            }
+        }
+        r.codUsername = Objects.toString(obj.get("cod_username"), "");
+        r.prestige = Objects.toString(obj.get("prestige"), "");
+        r.level = ((Number) obj.get("level")).intValue();
+        return r;
+    }
+}
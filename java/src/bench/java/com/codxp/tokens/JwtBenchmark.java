@@ -0,0 +1,38 @@
+package com.codxp.tokens;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** JWT issue and verify in {@link UserService}, with and without the verified-token cache. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwtBenchmark {
+    private String token;
+
+    @Setup
+    public void setup() {
+        token = UserService.issueToken("bench");
+    }
+
+    @Benchmark
+    public String issueToken() {
+        return UserService.issueToken("bench");
+    }
+
+    /** Same token every call: served from the cache after the first verification. */
+    @Benchmark
+    public String verifyCached() {
+        return UserService.verifyToken(token);
+    }
+
+    /** Fresh token every call: always a cache miss and a full signature check. */
+    @Benchmark
+    public String issueAndVerify() {
+        return UserService.verifyToken(UserService.issueToken("bench"));
+    }
+}
@@ -0,0 +1,47 @@
+package com.codxp.tokens;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** {@link TokenLib#plan} with its tables cached, and the cost of building one for a new inventory. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlanBenchmark {
+    /** Tokens held per bucket. */
+    @Param({"10", "500"})
+    public int perBucket;
+
+    private int[] counts;
+    private int target;
+    private int next;
+
+    @Setup
+    public void setup() {
+        counts = new int[] {perBucket, perBucket, perBucket, perBucket};
+        // about a third of the inventory, so the table spans a realistic range
+        target = TokenLib.computeTotalMinutes(counts, 0) / 3;
+        TokenLib.plan(counts, target, TokenLib.PlanObjective.FEWEST_TOKENS);
+    }
+
+    @Benchmark
+    public TokenLib.Plan cachedFewestTokens() {
+        return TokenLib.plan(counts, target, TokenLib.PlanObjective.FEWEST_TOKENS);
+    }
+
+    @Benchmark
+    public TokenLib.Plan cachedLeastWaste() {
+        return TokenLib.plan(counts, target, TokenLib.PlanObjective.LEAST_WASTE);
+    }
+
+    /** A fresh planner each time, so every call builds its table. */
+    @Benchmark
+    public TokenLib.Plan uncached() {
+        return new BurnPlanner(TokenLib.MINUTE_BUCKETS).plan(counts, target + (next++ & 15),
+                TokenLib.PlanObjective.FEWEST_TOKENS);
+    }
+}
@@ -0,0 +1,94 @@
+package com.codxp.tokens;
+
+import io.javalin.Javalin;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process load test: starts {@link TokenServer} on a random port against
+ * a temp data directory and drives its endpoints over HTTP from many
+ * threads. Reports throughput and the latency distribution per endpoint.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(16)
+@Fork(1)
+public class ServerLoadBenchmark {
+    private static final String USER = "bench";
+    private static final String TOKENS_BODY =
+            "{\"regular\":[1,2,3,4],\"weapon\":[5,6,7,8],\"battlepass\":[9,10,11,12]}";
+    private static final String DELTA_BODY = "{\"category\":\"weapon\",\"bucket\":30,\"delta\":1}";
+
+    private Path root;
+    private TokenStore store;
+    private Javalin app;
+    private HttpClient client;
+    private String base;
+    private String auth;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        root = BenchData.createRoot();
+        // must be set before UserService is initialised
+        System.setProperty("codxp.tokensFile", BenchData.tokensFile(root));
+        UserService.register(USER, "bench-password");
+        store = new TokenStore(UserService.getTokensFile(), 1000);
+        app = TokenServer.create(store).start(0);
+        base = "http://localhost:" + app.port();
+        auth = "Bearer " + UserService.issueToken(USER);
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        app.stop();
+        store.close();
+        BenchData.delete(root);
+    }
+
+    private int send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        HttpResponse<byte[]> res = client.send(request.header("Authorization", auth).build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        if (res.statusCode() >= 300) {
+            throw new IllegalStateException("HTTP " + res.statusCode());
+        }
+        return res.body().length;
+    }
+
+    @Benchmark
+    public int getTokens() throws Exception {
+        return send(HttpRequest.newBuilder(URI.create(base + "/tokens")).GET());
+    }
+
+    @Benchmark
+    public int getTotals() throws Exception {
+        return send(HttpRequest.newBuilder(URI.create(base + "/totals")).GET());
+    }
+
+    @Benchmark
+    public int getProfile() throws Exception {
+        return send(HttpRequest.newBuilder(URI.create(base + "/profile")).GET());
+    }
+
+    @Benchmark
+    public int putTokens() throws Exception {
+        return send(HttpRequest.newBuilder(URI.create(base + "/tokens"))
+                .PUT(HttpRequest.BodyPublishers.ofString(TOKENS_BODY)));
+    }
+
+    @Benchmark
+    public int patchTokens() throws Exception {
+        return send(HttpRequest.newBuilder(URI.create(base + "/tokens"))
+                .method("PATCH", HttpRequest.BodyPublishers.ofString(DELTA_BODY)));
+    }
+}
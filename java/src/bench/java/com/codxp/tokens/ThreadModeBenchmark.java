@@ -0,0 +1,90 @@
+package com.codxp.tokens;
+
+import io.javalin.Javalin;
+import io.javalin.util.ConcurrencyUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Platform-thread pool versus virtual threads under many simultaneous
+ * connections. Each invocation fires {@code connections} concurrent
+ * requests at a blocking endpoint and waits for all of them. The virtual
+ * mode needs a Java 21 runtime.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ThreadModeBenchmark {
+    private static final String USER = "bench";
+
+    @Param({"platform", "virtual"})
+    public String mode;
+
+    @Param({"256", "1024"})
+    public int connections;
+
+    private Path root;
+    private TokenStore store;
+    private Javalin app;
+    private HttpClient client;
+    private HttpRequest profile;
+    private HttpRequest tokens;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        boolean virtual = "virtual".equals(mode);
+        if (virtual && !ConcurrencyUtil.isLoomAvailable()) {
+            throw new IllegalStateException("virtual mode needs a Java 21 runtime");
+        }
+        root = BenchData.createRoot();
+        System.setProperty("codxp.tokensFile", BenchData.tokensFile(root));
+        System.setProperty("codxp.virtualThreads", String.valueOf(virtual));
+        UserService.register(USER, "bench-password");
+        store = new TokenStore(UserService.getTokensFile(), 1000);
+        app = TokenServer.create(store).start(0);
+        String base = "http://localhost:" + app.port();
+        String auth = "Bearer " + UserService.issueToken(USER);
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        profile = HttpRequest.newBuilder(URI.create(base + "/profile")).header("Authorization", auth).build();
+        tokens = HttpRequest.newBuilder(URI.create(base + "/tokens")).header("Authorization", auth).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        app.stop();
+        store.close();
+        BenchData.delete(root);
+    }
+
+    private int burst(HttpRequest request) {
+        CompletableFuture<?>[] all = new CompletableFuture<?>[connections];
+        for (int i = 0; i < connections; i++) {
+            all[i] = client.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+        }
+        CompletableFuture.allOf(all).join();
+        return all.length;
+    }
+
+    /** /profile reads the user's record from storage on every call. */
+    @Benchmark
+    public int profileBurst() {
+        return burst(profile);
+    }
+
+    /** /tokens is served from the resident store. */
+    @Benchmark
+    public int tokensBurst() {
+        return burst(tokens);
+    }
+}
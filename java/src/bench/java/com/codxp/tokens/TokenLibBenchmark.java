@@ -0,0 +1,65 @@
+package com.codxp.tokens;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/** File read/write path and totals computation in {@link TokenLib}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenLibBenchmark {
+    private static final String USER = "bench";
+
+    private Path root;
+    private String tokensFile;
+    private Map<TokenCategory, List<Integer>> data;
+    private List<Integer> weapon;
+    private int[] counts;
+
+    @Setup
+    public void setup() throws IOException {
+        root = BenchData.createRoot();
+        tokensFile = BenchData.tokensFile(root);
+        BenchData.writeUser(root, USER, BenchData.SAMPLE_USER);
+        data = TokenLib.readAllTokens(tokensFile, USER);
+        weapon = data.get(TokenCategory.WEAPON);
+        counts = TokenLib.toCounts(data);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchData.delete(root);
+    }
+
+    @Benchmark
+    public Map<TokenCategory, List<Integer>> readAllTokens() throws IOException {
+        return TokenLib.readAllTokens(tokensFile, USER);
+    }
+
+    @Benchmark
+    public void writeAllTokens() throws IOException {
+        TokenLib.writeAllTokens(tokensFile, USER, data);
+    }
+
+    @Benchmark
+    public AbstractMap.SimpleEntry<Integer, Double> computeTotals() {
+        return TokenLib.computeTotals(weapon);
+    }
+
+    @Benchmark
+    public int computeTotalMinutes() {
+        return TokenLib.computeTotalMinutes(counts, TokenStore.cell(TokenCategory.WEAPON, 0));
+    }
+
+    @Benchmark
+    public String buildTotalsReport() {
+        return TokenLib.buildTotalsReport(data);
+    }
+}
@@ -0,0 +1,77 @@
+package com.codxp.tokens;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of already verified JWTs, keyed by the raw token string.
+ * Each entry lives until the token's own expiry, so a cached token is never
+ * accepted after it would have failed verification.
+ */
+final class AuthCache {
+    private static final class Entry {
+        final String subject;
+        final long expiresAt;
+
+        Entry(String subject, long expiresAt) {
+            this.subject = subject;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    AuthCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /** Return the cached subject for the token, or null if it is unknown or expired. */
+    String get(String token) {
+        Entry e = entries.get(token);
+        if (e != null && System.currentTimeMillis() < e.expiresAt) {
+            hits.increment();
+            return e.subject;
+        }
+        if (e != null) {
+            entries.remove(token, e);
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(String token, String subject, long expiresAt) {
+        if (entries.size() >= maxSize) {
+            evict();
+        }
+        entries.put(token, new Entry(subject, expiresAt));
+    }
+
+    /** Drop expired tokens; if that frees too little, drop an arbitrary eighth of the cache. */
+    private void evict() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(e -> now >= e.expiresAt);
+        int excess = entries.size() - maxSize + Math.max(1, maxSize / 8);
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (excess-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,67 @@
+package com.codxp.tokens;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+
+/**
+ * Encodings offered for the cached per-user bodies. Smile and CBOR carry the
+ * same data model as JSON in fewer bytes and are cheaper to parse, for
+ * clients that ask for them in {@code Accept}; everyone else gets JSON.
+ */
+enum BodyFormat {
+    JSON("application/json", Json.MAPPER),
+    SMILE("application/x-jackson-smile", SmileMapper.builder()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false).build()),
+    CBOR("application/cbor", CBORMapper.builder()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false).build());
+
+    final String contentType;
+    final ObjectMapper mapper;
+
+    BodyFormat(String contentType, ObjectMapper mapper) {
+        this.contentType = contentType;
+        this.mapper = mapper;
+    }
+
+    /**
+     * The format an {@code Accept} header prefers: the offered type with the
+     * highest {@code q}, the earlier one on ties. JSON when the header is
+     * absent or names none of them, as before negotiation existed.
+     */
+    static BodyFormat negotiate(String accept) {
+        if (accept == null) {
+            return JSON;
+        }
+        BodyFormat best = JSON;
+        double bestQ = -1;
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String type = parts[0].trim().toLowerCase();
+            double q = quality(parts);
+            for (BodyFormat format : values()) {
+                if (format.contentType.equals(type) && q > bestQ) {
+                    best = format;
+                    bestQ = q;
+                }
+            }
+        }
+        return bestQ > 0 ? best : JSON;
+    }
+
+    /** The {@code q} parameter of a split header element, 1 when absent, 0 when unreadable. */
+    static double quality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
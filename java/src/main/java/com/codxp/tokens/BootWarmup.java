@@ -0,0 +1,138 @@
+package com.codxp.tokens;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Optional boot phase that reads every stored user once, in parallel, before
+ * the server reports itself ready. Each record is parsed and checked, its
+ * counts are made resident in the {@link TokenStore}, and it seeds the
+ * {@link Leaderboard}, so the first requests after a deploy find everything
+ * warm and a corrupt user file is reported at boot rather than at that
+ * user's next login. The server accepts requests meanwhile; {@code /ready}
+ * answers 503 until the phase is over.
+ */
+final class BootWarmup {
+    /** Outcome of a finished warmup. */
+    static final class Report {
+        final int users;
+        /** One line per user file that could not be read or failed validation. */
+        final List<String> malformed;
+        final long millis;
+
+        Report(int users, List<String> malformed, long millis) {
+            this.users = users;
+            this.malformed = malformed;
+            this.millis = millis;
+        }
+    }
+
+    private volatile Report report;
+
+    private BootWarmup() {
+    }
+
+    /** A warmup that has nothing to do, for servers started without one. */
+    static BootWarmup skipped() {
+        BootWarmup w = new BootWarmup();
+        w.report = new Report(0, List.of(), 0);
+        return w;
+    }
+
+    /**
+     * Start loading, on {@code threads} workers, every user accepted by
+     * {@code include}. The leaderboard is marked ready together with the
+     * warmup.
+     */
+    static BootWarmup start(UserStorage storage, TokenStore store, Leaderboard leaderboard,
+                        Predicate<String> include, int threads) {
+        BootWarmup w = new BootWarmup();
+        Thread t = new Thread(() -> w.run(storage, store, leaderboard, include, threads), "warmup");
+        t.setDaemon(true);
+        t.start();
+        return w;
+    }
+
+    boolean done() {
+        return report != null;
+    }
+
+    /** The finished warmup's report, or null while it is running. */
+    Report report() {
+        return report;
+    }
+
+    private void run(UserStorage storage, TokenStore store, Leaderboard leaderboard,
+                     Predicate<String> include, int threads) {
+        long start = System.nanoTime();
+        AtomicInteger loaded = new AtomicInteger();
+        Queue<String> malformed = new ConcurrentLinkedQueue<>();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<String> usernames = storage.usernames();
+            // a parallel stream run inside a pool uses that pool's workers
+            pool.submit(() -> usernames.parallelStream().filter(include).forEach(username -> {
+                String problem = load(storage, store, leaderboard, username);
+                if (problem == null) {
+                    loaded.incrementAndGet();
+                } else {
+                    malformed.add(username + ": " + problem);
+                }
+            })).get();
+            warmSerializers();
+        } catch (Exception e) {
+            malformed.add("(listing users) " + e);
+        } finally {
+            pool.shutdown();
+        }
+        leaderboard.markReady();
+        List<String> problems = new ArrayList<>(malformed);
+        Collections.sort(problems);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        for (String problem : problems) {
+            System.err.println("Warmup: malformed user " + problem);
+        }
+        System.out.println("Warmup loaded " + loaded.get() + " users in " + millis + " ms with " + threads
+                + " threads; " + problems.size() + " malformed");
+        report = new Report(loaded.get(), Collections.unmodifiableList(problems), millis);
+    }
+
+    /** Load and check one user; returns what is wrong with it, or null. */
+    private static String load(UserStorage storage, TokenStore store, Leaderboard leaderboard, String username) {
+        UserRecord r;
+        try {
+            r = storage.load(username);
+        } catch (JsonProcessingException e) {
+            return e.getOriginalMessage();
+        } catch (IOException e) {
+            return e.toString();
+        }
+        if (r == null) {
+            return null; // deleted since the listing
+        }
+        for (int count : r.tokens) {
+            if (count < 0) {
+                return "negative token count";
+            }
+        }
+        if (r.passwordHash.isEmpty() && !"default".equals(username)) {
+            return "no password hash, so the user cannot log in";
+        }
+        store.preload(username, r.tokens);
+        leaderboard.offer(username, r.tokens);
+        return null;
+    }
+
+    /** Build one of each per-user response so Jackson has its serializers before the first request. */
+    private static void warmSerializers() throws IOException {
+        int[] counts = new int[UserRecord.CELLS];
+        Json.MAPPER.writeValueAsBytes(TokenServer.tokensJson(counts));
+        Json.MAPPER.writeValueAsBytes(TokenServer.totalsJson(TokenStore.State.of(0, counts)));
+    }
+}
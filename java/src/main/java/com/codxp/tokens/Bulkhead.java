@@ -0,0 +1,49 @@
+package com.codxp.tokens;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps how many requests of one endpoint class run at the same time. With
+ * virtual threads the server no longer has a thread-pool ceiling, so these
+ * limits keep, say, a flood of logins from crowding out token reads.
+ * A request that cannot get a permit within the wait time is turned away.
+ */
+final class Bulkhead {
+    private final String name;
+    private final int limit;
+    private final long waitMillis;
+    private final Semaphore permits;
+
+    /** A limit of zero or less means unlimited. */
+    Bulkhead(String name, int limit, long waitMillis) {
+        this.name = name;
+        this.limit = limit;
+        this.waitMillis = waitMillis;
+        this.permits = limit > 0 ? new Semaphore(limit) : null;
+    }
+
+    /** Build from {@code codxp.limit.<name>}, waiting up to {@code codxp.limitWaitMs}. */
+    static Bulkhead fromConfig(String name) {
+        return new Bulkhead(name, Integer.getInteger("codxp.limit." + name, 0), Long.getLong("codxp.limitWaitMs", 100));
+    }
+
+    boolean tryEnter() throws InterruptedException {
+        return permits == null || permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void exit() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    String name() {
+        return name;
+    }
+
+    /** Requests currently holding a permit, or -1 if unlimited. */
+    int inFlight() {
+        return permits == null ? -1 : limit - permits.availablePermits();
+    }
+}
@@ -0,0 +1,225 @@
+package com.codxp.tokens;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded-knapsack solver behind {@link TokenLib#plan}. Bucket lengths are
+ * divided by their greatest common divisor, so {15, 30, 45, 60} minutes
+ * become sizes 1 to 4 and a target becomes a small number of units.
+ *
+ * <p>For one inventory, a table holds the fewest tokens that add up to
+ * exactly each sum, built one bucket at a time. Each step takes a sliding
+ * minimum over each residue class, so a table costs O(buckets x sum) however
+ * many tokens the user has. An optimal plan never overshoots the target by a
+ * whole token, since dropping that token would still cover it. A table up to
+ * the target plus the largest size therefore answers every objective. Tables
+ * are kept per inventory, so repeated and what-if queries against the same
+ * counts only read them. Together they hold at most {@code codxp.plan.cacheMb}
+ * of cells; beyond that the least recently used tables are dropped.
+ */
+final class BurnPlanner {
+    private static final int UNREACHABLE = Integer.MAX_VALUE / 2;
+    private static final long CACHE_CELLS = Long.getLong("codxp.plan.cacheMb", 64) * (1 << 20) / Integer.BYTES;
+
+    private final int unitMinutes;
+    private final int[] sizes;
+    private final int maxSize;
+    private final ConcurrentHashMap<Inventory, Table> tables = new ConcurrentHashMap<>();
+    /** Logical clock stamped on a table at each use, to find the least recently used. */
+    private final AtomicLong clock = new AtomicLong();
+    /** Cells held by {@link #tables}; guarded by this. */
+    private long cachedCells;
+
+    BurnPlanner(int[] bucketMinutes) {
+        int gcd = 0;
+        for (int minutes : bucketMinutes) {
+            gcd = gcd(gcd, minutes);
+        }
+        this.unitMinutes = gcd;
+        this.sizes = new int[bucketMinutes.length];
+        int max = 0;
+        for (int i = 0; i < bucketMinutes.length; i++) {
+            sizes[i] = bucketMinutes[i] / gcd;
+            max = Math.max(max, sizes[i]);
+        }
+        this.maxSize = max;
+    }
+
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    /** Counts per bucket; the key tables are kept under. */
+    private static final class Inventory {
+        final int[] counts;
+        final int hash;
+
+        Inventory(int[] counts) {
+            this.counts = counts;
+            this.hash = Arrays.hashCode(counts);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Inventory && Arrays.equals(counts, ((Inventory) o).counts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** {@code fewest[k][s]}: fewest tokens from the first {@code k} buckets that add up to exactly {@code s} units. */
+    private static final class Table {
+        final int[][] fewest;
+        final int capacity;
+        final long cells;
+        volatile long used;
+
+        Table(int[][] fewest, int capacity) {
+            this.fewest = fewest;
+            this.capacity = capacity;
+            this.cells = (long) fewest.length * (capacity + 1);
+        }
+    }
+
+    TokenLib.Plan plan(int[] counts, int targetMinutes, TokenLib.PlanObjective objective) {
+        int[] have = new int[sizes.length];
+        long totalUnits = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            have[i] = Math.max(0, i < counts.length ? counts[i] : 0);
+            totalUnits += (long) have[i] * sizes[i];
+        }
+        int target = Math.max(0, (targetMinutes + unitMinutes - 1) / unitMinutes);
+        if (target > totalUnits) {
+            return result(have, targetMinutes); // everything falls short; burn it all
+        }
+        int needed = (int) Math.min(totalUnits, (long) target + maxSize - 1);
+        Table table = table(have, needed, (int) Math.min(totalUnits, Integer.MAX_VALUE / 4));
+        int[] last = table.fewest[sizes.length];
+        int best = -1;
+        for (int s = target; s <= needed; s++) {
+            if (last[s] >= UNREACHABLE) {
+                continue;
+            }
+            if (best < 0) {
+                best = s;
+                if (objective == TokenLib.PlanObjective.LEAST_WASTE) {
+                    break;
+                }
+            } else if (last[s] < last[best]) {
+                best = s;
+            }
+        }
+        return result(reconstruct(table, have, best), targetMinutes);
+    }
+
+    private Table table(int[] have, int needed, int maxCapacity) {
+        Inventory key = new Inventory(have);
+        Table cached = tables.get(key);
+        if (cached != null && cached.capacity >= needed) {
+            cached.used = clock.incrementAndGet();
+            return cached;
+        }
+        // grow geometrically so a series of rising what-if targets rebuilds only a few times
+        int capacity = Math.min(maxCapacity, Math.max(needed, cached == null ? 0 : 2 * cached.capacity));
+        Table table = build(have, capacity);
+        cache(key, table);
+        return table;
+    }
+
+    /** Keep {@code table} unless a larger one is cached already or it would not fit at all. */
+    private synchronized void cache(Inventory key, Table table) {
+        Table old = tables.get(key);
+        if (table.cells > CACHE_CELLS || old != null && old.capacity >= table.capacity) {
+            return;
+        }
+        table.used = clock.incrementAndGet();
+        tables.put(key, table);
+        cachedCells += table.cells - (old == null ? 0 : old.cells);
+        if (cachedCells > CACHE_CELLS) {
+            evict();
+        }
+    }
+
+    /** Drop the least recently used tables until the cache is down to seven eighths of its budget. */
+    private void evict() {
+        List<Map.Entry<Inventory, Table>> entries = new ArrayList<>(tables.entrySet());
+        entries.sort(Comparator.comparingLong(e -> e.getValue().used));
+        long target = CACHE_CELLS - CACHE_CELLS / 8;
+        for (Map.Entry<Inventory, Table> e : entries) {
+            if (cachedCells <= target) {
+                break;
+            }
+            tables.remove(e.getKey());
+            cachedCells -= e.getValue().cells;
+        }
+    }
+
+    private Table build(int[] have, int capacity) {
+        int[][] fewest = new int[sizes.length + 1][capacity + 1];
+        Arrays.fill(fewest[0], UNREACHABLE);
+        fewest[0][0] = 0;
+        // monotone queue of step indices whose prev[r + i*size] - i increases from head to tail
+        int[] window = new int[capacity + 1];
+        for (int k = 0; k < sizes.length; k++) {
+            int[] prev = fewest[k];
+            int[] next = fewest[k + 1];
+            int size = sizes[k];
+            int count = have[k];
+            for (int r = 0; r < size && r <= capacity; r++) {
+                // next[r + j*size] = min over j - count <= i <= j of prev[r + i*size] - i, plus j
+                int head = 0;
+                int tail = 0;
+                for (int j = 0; r + j * size <= capacity; j++) {
+                    int value = prev[r + j * size] - j;
+                    while (tail > head && prev[r + window[tail - 1] * size] - window[tail - 1] >= value) {
+                        tail--;
+                    }
+                    window[tail++] = j;
+                    if (window[head] < j - count) {
+                        head++;
+                    }
+                    int i = window[head];
+                    int best = prev[r + i * size];
+                    next[r + j * size] = best >= UNREACHABLE ? UNREACHABLE : best - i + j;
+                }
+            }
+        }
+        return new Table(fewest, capacity);
+    }
+
+    /** Tokens per bucket of a fewest-token combination adding up to exactly {@code sum} units. */
+    private int[] reconstruct(Table table, int[] have, int sum) {
+        int[] use = new int[sizes.length];
+        for (int k = sizes.length - 1; k >= 0; k--) {
+            int[] prev = table.fewest[k];
+            int goal = table.fewest[k + 1][sum];
+            for (int n = 0; n <= have[k] && n * sizes[k] <= sum; n++) {
+                if (prev[sum - n * sizes[k]] + n == goal) {
+                    use[k] = n;
+                    sum -= n * sizes[k];
+                    break;
+                }
+            }
+        }
+        return use;
+    }
+
+    private TokenLib.Plan result(int[] use, int targetMinutes) {
+        int tokens = 0;
+        int minutes = 0;
+        for (int i = 0; i < use.length; i++) {
+            tokens += use[i];
+            minutes += use[i] * sizes[i] * unitMinutes;
+        }
+        return new TokenLib.Plan(targetMinutes, use, tokens, minutes, minutes >= targetMinutes);
+    }
+}
@@ -0,0 +1,100 @@
+package com.codxp.tokens;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Named groups of users, such as squads, from {@code data/groups.json}:
+ * an object mapping each group name to its members' usernames. Members of a
+ * group may read each other's tokens through {@code /squad}. The file is
+ * edited by hand and reread when its modification time changes, checked at
+ * most once a second; a file that fails to parse keeps the previous groups.
+ */
+final class Groups {
+    private static final ObjectReader READER = Json.MAPPER.readerFor(new TypeReference<Map<String, List<String>>>() {});
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    private final Path file;
+    private volatile Map<String, Set<String>> members = Map.of();
+    /** Username to the names of the groups it belongs to. */
+    private volatile Map<String, Set<String>> memberships = Map.of();
+    private volatile long modified = Long.MIN_VALUE;
+    private volatile long lastCheck;
+
+    Groups(Path file) {
+        this.file = file;
+    }
+
+    /** The groups file named by {@code codxp.groupsFile}, by default {@code data/groups.json}. */
+    static Groups fromConfig(String tokensFile) {
+        String path = System.getProperty("codxp.groupsFile");
+        return new Groups(path != null ? Path.of(path) : Storage.dataDir(tokensFile).resolve("groups.json"));
+    }
+
+    /** Members of {@code group}, or null if there is no such group. */
+    Set<String> members(String group) {
+        reloadIfChanged();
+        return members.get(group);
+    }
+
+    /** Whether {@code reader} may see {@code target}'s data: itself, or a user it shares a group with. */
+    boolean canRead(String reader, String target) {
+        if (reader.equals(target)) {
+            return true;
+        }
+        reloadIfChanged();
+        Set<String> mine = memberships.getOrDefault(reader, Set.of());
+        for (String group : memberships.getOrDefault(target, Set.of())) {
+            if (mine.contains(group)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void reloadIfChanged() {
+        long now = System.currentTimeMillis();
+        if (now - lastCheck < CHECK_INTERVAL_MILLIS) {
+            return;
+        }
+        synchronized (this) {
+            if (now - lastCheck < CHECK_INTERVAL_MILLIS) {
+                return;
+            }
+            lastCheck = now;
+            try {
+                long mtime = Files.getLastModifiedTime(file).toMillis();
+                if (mtime != modified) {
+                    load(READER.readValue(Files.readAllBytes(file)));
+                    modified = mtime;
+                }
+            } catch (NoSuchFileException e) {
+                load(Map.of());
+                modified = Long.MIN_VALUE;
+            } catch (IOException e) {
+                System.err.println("Reading " + file + " failed, keeping the previous groups: " + e);
+            }
+        }
+    }
+
+    private void load(Map<String, List<String>> groups) {
+        Map<String, Set<String>> nextMembers = new HashMap<>();
+        Map<String, Set<String>> nextMemberships = new HashMap<>();
+        groups.forEach((group, users) -> {
+            Set<String> set = new LinkedHashSet<>(users == null ? List.of() : users);
+            set.remove(null);
+            nextMembers.put(group, Collections.unmodifiableSet(set));
+            for (String user : set) {
+                nextMemberships.computeIfAbsent(user, u -> new HashSet<>()).add(group);
+            }
+        });
+        members = nextMembers;
+        memberships = nextMemberships;
+    }
+}
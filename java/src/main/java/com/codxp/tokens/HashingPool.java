@@ -0,0 +1,58 @@
+package com.codxp.tokens;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dedicated, bounded executor for bcrypt work. Login and registration hash
+ * passwords here instead of on Javalin's request threads, so a burst of
+ * logins cannot starve the cheap token endpoints. When both the workers and
+ * the queue are busy, {@link #submit(Callable)} fails fast with
+ * {@link RejectedExecutionException} and the caller should answer 503.
+ */
+final class HashingPool {
+    static final int THREADS = Integer.getInteger("codxp.bcryptThreads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    static final int QUEUE = Integer.getInteger("codxp.bcryptQueue", 64);
+    /** Seconds a client is asked to wait via Retry-After when the pool is saturated. */
+    static final int RETRY_AFTER_SECONDS = Integer.getInteger("codxp.bcryptRetryAfter", 1);
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE),
+            new ThreadFactory() {
+                private final AtomicInteger n = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "bcrypt-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+
+    private HashingPool() {
+    }
+
+    /** Run the task on the hashing pool; throws RejectedExecutionException when saturated. */
+    static <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        EXECUTOR.execute(() -> {
+            try {
+                result.complete(task.call());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    static int queueDepth() {
+        return EXECUTOR.getQueue().size();
+    }
+
+    static int activeCount() {
+        return EXECUTOR.getActiveCount();
+    }
+}
@@ -0,0 +1,74 @@
+package com.codxp.tokens;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.util.Map;
+
+/**
+ * The process-wide Jackson mapper and the readers and writers built from it.
+ * Mappers are expensive to create and readers/writers cache their
+ * (de)serializers, so every JSON path shares these instances instead of
+ * constructing its own. Server responses use the mapper's compact output;
+ * only user files are pretty-printed, to match the Python CLI.
+ */
+final class Json {
+    /** Unknown properties are ignored, as with the untyped maps this replaced. */
+    static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    static final ObjectReader USER_FILE_READER = MAPPER.readerFor(UserFile.class);
+    static final ObjectWriter USER_FILE_WRITER = MAPPER.writerFor(UserFile.class).withDefaultPrettyPrinter();
+
+    /** Request body of {@code /login} and {@code /register}. */
+    static final ObjectReader CREDENTIALS_READER = MAPPER.readerFor(Credentials.class);
+    /** Request body of {@code /refresh}. */
+    static final ObjectReader REFRESH_READER = MAPPER.readerFor(RefreshRequest.class);
+    /** Request body of {@code PUT /profile}. */
+    static final ObjectReader PROFILE_READER = MAPPER.readerFor(ProfileUpdate.class);
+    /** Request body of {@code PUT /tokens}: category key to counts per bucket. */
+    static final ObjectReader COUNTS_READER = MAPPER.readerFor(new TypeReference<Map<String, int[]>>() {});
+
+    private Json() {
+    }
+
+    static final class Credentials {
+        @JsonProperty("username")
+        String username;
+        @JsonProperty("password")
+        String password;
+    }
+
+    static final class RefreshRequest {
+        @JsonProperty("refresh_token")
+        String refreshToken;
+    }
+
+    static final class ProfileUpdate {
+        @JsonProperty("cod_username")
+        String codUsername = "";
+        @JsonProperty("prestige")
+        String prestige = "";
+        /** A number or a numeric string, as older clients send it. */
+        @JsonProperty("level")
+        Object level;
+    }
+
+    /** Lenient level parsing shared by profile updates and user files; {@code fallback} if unreadable. */
+    static int parseLevel(Object level, int fallback) {
+        if (level instanceof Number) {
+            return ((Number) level).intValue();
+        }
+        if (level instanceof String) {
+            try {
+                return Integer.parseInt((String) level);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return fallback;
+    }
+}
@@ -0,0 +1,155 @@
+package com.codxp.tokens;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Default backend: one pretty-printed JSON file per user under
+ * {@code data/users/}, the format shared with the Python CLI. Fields this
+ * class does not know about are preserved on every write.
+ */
+final class JsonUserStorage implements UserStorage {
+    private static final Metrics.Counter READ_BYTES = Metrics.counter("codxp_storage_read_bytes_total",
+            "Bytes read from storage files.", "backend=\"json\"");
+    private static final Metrics.Counter WRITTEN_BYTES = Metrics.counter("codxp_storage_written_bytes_total",
+            "Bytes written to storage files.", "backend=\"json\"");
+
+    private final String tokensFile;
+
+    JsonUserStorage(String tokensFile) {
+        this.tokensFile = tokensFile;
+    }
+
+    private Path userFile(String username) {
+        return UserFiles.userFile(tokensFile, username);
+    }
+
+    private static byte[] readBytes(Path userPath) throws IOException {
+        byte[] bytes = Files.readAllBytes(userPath);
+        READ_BYTES.add(bytes.length);
+        return bytes;
+    }
+
+    private static UserFile read(Path userPath) throws IOException {
+        byte[] bytes = readBytes(userPath);
+        UserFiles.noteRead(userPath, bytes);
+        return Json.USER_FILE_READER.readValue(bytes);
+    }
+
+    /** The current file, refusing one with an external change not reloaded yet, which a write would lose. */
+    private static UserFile readForWrite(Path userPath) throws IOException {
+        byte[] bytes = readBytes(userPath);
+        UserFiles.checkNoExternalChange(userPath, bytes);
+        return Json.USER_FILE_READER.readValue(bytes);
+    }
+
+    private static void write(Path userPath, UserFile file) throws IOException {
+        byte[] bytes = Json.USER_FILE_WRITER.writeValueAsBytes(file);
+        UserFiles.writeAtomically(userPath, bytes);
+        WRITTEN_BYTES.add(bytes.length);
+    }
+
+    @Override
+    public UserRecord load(String username) throws IOException {
+        Path userPath = userFile(username);
+        if (!Files.exists(userPath)) {
+            return null;
+        }
+        return read(userPath).toRecord(username);
+    }
+
+    @Override
+    public boolean create(UserRecord record) throws IOException {
+        Path userPath = userFile(record.username);
+        ReentrantLock lock = UserFiles.lockFor(record.username);
+        lock.lock();
+        try {
+            if (Files.exists(userPath)) {
+                return false;
+            }
+            write(userPath, new UserFile().apply(record));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public UserRecord update(String username, Consumer<UserRecord> change) throws IOException {
+        Path userPath = userFile(username);
+        ReentrantLock lock = UserFiles.lockFor(username);
+        lock.lock();
+        try {
+            UserFile file = Files.exists(userPath) ? readForWrite(userPath) : new UserFile();
+            UserRecord record = file.toRecord(username);
+            change.accept(record);
+            write(userPath, file.apply(record));
+            return record;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public UserRecord updateExisting(String username, Consumer<UserRecord> change) throws IOException {
+        Path userPath = userFile(username);
+        ReentrantLock lock = UserFiles.lockFor(username);
+        lock.lock();
+        try {
+            if (!Files.exists(userPath)) {
+                return null;
+            }
+            UserFile file = readForWrite(userPath);
+            UserRecord record = file.toRecord(username);
+            change.accept(record);
+            write(userPath, file.apply(record));
+            return record;
+        } catch (NoSuchFileException e) {
+            return null; // deleted by another program since the check
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Replaces each record outright, even over an external change not reloaded yet: the import is the newer write. */
+    @Override
+    public void putAll(List<UserRecord> records) throws IOException {
+        for (UserRecord record : records) {
+            Path userPath = userFile(record.username);
+            ReentrantLock lock = UserFiles.lockFor(record.username);
+            lock.lock();
+            try {
+                UserFile file = Files.exists(userPath) ? read(userPath) : new UserFile();
+                write(userPath, file.apply(record));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public List<String> usernames() throws IOException {
+        Path dir = userFile("x").getParent();
+        if (!Files.isDirectory(dir)) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(p -> {
+                String name = p.getFileName().toString();
+                if (name.endsWith(".json")) {
+                    names.add(name.substring(0, name.length() - ".json".length()));
+                }
+            });
+        }
+        return names;
+    }
+
+    @Override
+    public void close() {
+    }
+}
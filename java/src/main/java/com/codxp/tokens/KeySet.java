@@ -0,0 +1,199 @@
+package com.codxp.tokens;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.jsonwebtoken.security.Keys;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * The HMAC keys JWTs are signed and verified with. Each key has an id that
+ * tokens carry in their {@code kid} header. The newest key signs; older
+ * ones still verify until every token they could have signed has expired.
+ *
+ * <p>Keys are kept in {@code data/keys.json}, so tokens survive restarts and
+ * every process on the same data directory accepts the others' tokens. Once
+ * the signing key is older than the rotation period, the first process to
+ * notice adds a new one, under a file lock so that processes never rotate
+ * past each other. A token with an unknown {@code kid} makes this process
+ * reread the file, at most once a second, in case another process rotated.
+ * The file is created owner-readable only, like every temp file
+ * {@link UserFiles#writeAtomically} moves into place.
+ */
+final class KeySet {
+    private static final long RELOAD_INTERVAL_MILLIS = 1000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** One key as stored. */
+    static final class StoredKey {
+        @JsonProperty("kid")
+        String kid;
+        /** Base64 of the raw HMAC secret. */
+        @JsonProperty("secret")
+        String secret;
+        @JsonProperty("created")
+        long created;
+    }
+
+    static final class Stored {
+        @JsonProperty("keys")
+        List<StoredKey> keys = new ArrayList<>();
+    }
+
+    /** A key ready for signing or verification. */
+    static final class SigningKey {
+        final String kid;
+        final Key key;
+        final long created;
+
+        SigningKey(String kid, Key key, long created) {
+            this.kid = kid;
+            this.key = key;
+            this.created = created;
+        }
+    }
+
+    private final Path file;
+    private final long rotateMillis;
+    private final long retainMillis;
+    private volatile Map<String, SigningKey> keys = Map.of();
+    private volatile SigningKey current;
+    private volatile long lastReload;
+
+    private KeySet(Path file, long rotateMillis, long retainMillis) {
+        this.file = file;
+        this.rotateMillis = rotateMillis;
+        this.retainMillis = retainMillis;
+    }
+
+    /**
+     * A single fixed key derived from {@code secret}, for nodes that share
+     * no data directory; its id is a hash of the secret. Never rotates.
+     */
+    static KeySet fixed(String secret) {
+        byte[] bytes = secret.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < 32) {
+            throw new IllegalArgumentException("codxp.jwt.secret must be at least 32 bytes");
+        }
+        KeySet set = new KeySet(null, Long.MAX_VALUE, Long.MAX_VALUE);
+        SigningKey key = new SigningKey("cfg-" + fingerprint(bytes), Keys.hmacShaKeyFor(bytes), 0);
+        set.keys = Map.of(key.kid, key);
+        set.current = key;
+        return set;
+    }
+
+    /**
+     * Keys persisted in {@code file}, created if missing. The signing key is
+     * replaced after {@code rotateMillis}; a retired key is dropped once it is
+     * older than {@code rotateMillis + retainMillis}, where {@code retainMillis}
+     * is the longest lifetime of any token.
+     */
+    static KeySet persisted(Path file, long rotateMillis, long retainMillis) throws IOException {
+        KeySet set = new KeySet(file, rotateMillis, retainMillis);
+        set.rotateIfDue(System.currentTimeMillis());
+        return set;
+    }
+
+    /** Short, stable, non-reversible id for a secret or password hash. */
+    static String fingerprint(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, 9));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** The key to sign with, rotating first if it is due. */
+    SigningKey current() {
+        SigningKey key = current;
+        long now = System.currentTimeMillis();
+        if (now - key.created >= rotateMillis) {
+            try {
+                rotateIfDue(now);
+            } catch (IOException e) {
+                // keep signing with the old key; it still verifies everywhere
+                System.err.println("Rotating the JWT signing key failed: " + e);
+            }
+            key = current;
+        }
+        return key;
+    }
+
+    /** The key with this id, or null if there is none even after rereading the file. */
+    Key resolve(String kid) {
+        SigningKey key = kid == null ? null : keys.get(kid);
+        if (key == null && file != null && System.currentTimeMillis() - lastReload >= RELOAD_INTERVAL_MILLIS) {
+            try {
+                synchronized (this) {
+                    apply(read());
+                }
+            } catch (IOException e) {
+                System.err.println("Reloading JWT keys failed: " + e);
+            }
+            key = keys.get(kid);
+        }
+        return key == null ? null : key.key;
+    }
+
+    /** Reread the file and, if its newest key is too old, add a new one and drop expired ones. */
+    private synchronized void rotateIfDue(long now) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        try (FileChannel ch = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = ch.lock();
+            try {
+                Stored stored = read();
+                long newest = stored.keys.stream().mapToLong(k -> k.created).max().orElse(Long.MIN_VALUE);
+                if (stored.keys.isEmpty() || now - newest >= rotateMillis) {
+                    byte[] secret = new byte[32];
+                    RANDOM.nextBytes(secret);
+                    StoredKey key = new StoredKey();
+                    key.kid = fingerprint(secret);
+                    key.secret = Base64.getEncoder().encodeToString(secret);
+                    key.created = now;
+                    stored.keys.removeIf(k -> now - k.created >= rotateMillis + retainMillis);
+                    stored.keys.add(key);
+                    UserFiles.writeAtomically(file, Json.MAPPER.writerWithDefaultPrettyPrinter().writeValueAsBytes(stored));
+                }
+                apply(stored);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private Stored read() throws IOException {
+        lastReload = System.currentTimeMillis();
+        if (!Files.exists(file)) {
+            return new Stored();
+        }
+        return Json.MAPPER.readValue(Files.readAllBytes(file), Stored.class);
+    }
+
+    private void apply(Stored stored) {
+        Map<String, SigningKey> next = new HashMap<>();
+        SigningKey newest = null;
+        for (StoredKey k : stored.keys) {
+            SigningKey key = new SigningKey(k.kid, Keys.hmacShaKeyFor(Base64.getDecoder().decode(k.secret)), k.created);
+            next.put(key.kid, key);
+            if (newest == null || key.created > newest.created) {
+                newest = key;
+            }
+        }
+        if (newest != null) {
+            keys = next;
+            current = newest;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.codxp.tokens;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Ranks all users by total 2XP minutes, overall and per category. One
+ * {@link RankedIndex} per board is kept in memory and adjusted on every
+ * token change through {@link TokenStore.Listener}, so top-N, rank and
+ * percentile queries never touch the user files.
+ *
+ * <p>At startup the boards are seeded from storage on a background thread;
+ * until that finishes {@link #ready()} is false. Changes that arrive during
+ * seeding win over the possibly older values read from storage.
+ *
+ * <p>Changes are not indexed on the thread that made them. Each one only
+ * replaces the user's queued state, and a single updater thread indexes
+ * everything queued under one write lock, so writers never wait for each
+ * other or for readers. A queued state older than the one already indexed
+ * for that user is dropped, however late its listener ran. Reads first
+ * index anything still queued, so they see every change made before them.
+ */
+final class Leaderboard implements TokenStore.Listener {
+    /** Board index of the grand total; category boards follow at 1 + ordinal. */
+    static final int GRAND = 0;
+    private static final int BOARDS = 1 + TokenCategory.values().length;
+
+    private final RankedIndex[] boards = new RankedIndex[BOARDS];
+    private final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+    /** Store version each user was last indexed at; removed users keep theirs. Guarded by the write lock. */
+    private final Map<String, Long> versions = new HashMap<>();
+    private final ConcurrentHashMap<String, TokenStore.State> queued = new ConcurrentHashMap<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final ExecutorService updater = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "leaderboard-updater");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean ready;
+
+    Leaderboard() {
+        for (int i = 0; i < BOARDS; i++) {
+            boards[i] = new RankedIndex();
+        }
+    }
+
+    /** Board index for {@code grand} or a category key, or -1 if unknown. */
+    static int board(String name) {
+        if (name == null || name.equals("grand")) {
+            return GRAND;
+        }
+        for (TokenCategory cat : TokenCategory.values()) {
+            if (cat.key().equalsIgnoreCase(name)) {
+                return 1 + cat.ordinal();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Index every stored user accepted by {@code include} in the background;
+     * users changed meanwhile keep their newer values.
+     */
+    void seed(UserStorage storage, Predicate<String> include) {
+        Thread t = new Thread(() -> {
+            try {
+                for (String username : storage.usernames()) {
+                    if (!include.test(username)) {
+                        continue;
+                    }
+                    try {
+                        UserRecord r = storage.load(username);
+                        if (r != null) {
+                            offer(username, r.tokens);
+                        }
+                    } catch (IOException e) {
+                        // one unreadable file must not leave everyone after it unranked
+                        System.err.println("Leaderboard skipped " + username + ": " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Seeding the leaderboard failed: " + e);
+            }
+            markReady();
+        }, "leaderboard-seed");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Seed one user read from storage; ignored if the user was indexed meanwhile. */
+    void offer(String username, int[] counts) {
+        rw.writeLock().lock();
+        try {
+            if (!versions.containsKey(username)) {
+                index(username, TokenStore.State.of(Long.MIN_VALUE, counts));
+            }
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /** Called once seeding, here or by {@link BootWarmup}, has finished. */
+    void markReady() {
+        ready = true;
+    }
+
+    boolean ready() {
+        return ready;
+    }
+
+    @Override
+    public void tokensChanged(String username, TokenStore.State before, TokenStore.State after) {
+        enqueue(username, after);
+    }
+
+    /**
+     * Index counts that reached storage without passing through the
+     * TokenStore, as of {@code version}, the store's {@link TokenStore#version}
+     * for the user.
+     */
+    void set(String username, long version, int[] counts) {
+        enqueue(username, TokenStore.State.of(version, counts));
+    }
+
+    private void enqueue(String username, TokenStore.State state) {
+        queued.merge(username, state, (old, next) -> next.version >= old.version ? next : old);
+        if (drainScheduled.compareAndSet(false, true)) {
+            updater.execute(() -> {
+                drainScheduled.set(false);
+                drain();
+            });
+        }
+    }
+
+    /** Index every queued state, unless readers or the updater already did. */
+    private void drain() {
+        if (queued.isEmpty()) {
+            return;
+        }
+        rw.writeLock().lock();
+        try {
+            for (String username : queued.keySet()) {
+                TokenStore.State state = queued.remove(username);
+                if (state != null) {
+                    index(username, state);
+                }
+            }
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /** Put the user's totals on every board unless a newer version is indexed. Write lock held. */
+    private void index(String username, TokenStore.State state) {
+        Long indexed = versions.get(username);
+        if (indexed != null && state.version < indexed) {
+            return;
+        }
+        versions.put(username, state.version);
+        boards[GRAND].put(username, state.grandMinutes);
+        for (int c = 0; c < state.minutes.length; c++) {
+            boards[1 + c].put(username, state.minutes[c]);
+        }
+    }
+
+    /**
+     * Drop the user from all boards. Changes older than {@code version}, the
+     * version the store would load the user at next, are ignored from now on.
+     */
+    void remove(String username, long version) {
+        rw.writeLock().lock();
+        try {
+            versions.merge(username, version, Math::max);
+            for (RankedIndex index : boards) {
+                index.remove(username);
+            }
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /** Drop every user not accepted by {@code keep} from all boards. */
+    void retain(Predicate<String> keep) {
+        drain();
+        rw.writeLock().lock();
+        try {
+            for (String username : boards[GRAND].names()) {
+                if (!keep.test(username)) {
+                    for (RankedIndex index : boards) {
+                        index.remove(username);
+                    }
+                }
+            }
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /** Up to {@code limit} users from 1-based {@code fromRank}, best first. */
+    List<RankedIndex.Ranked> page(int board, int fromRank, int limit) {
+        drain();
+        rw.readLock().lock();
+        try {
+            return boards[board].page(fromRank, limit);
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    /**
+     * The user's standing on a board: {rank, users, minutes, percentile}, where
+     * percentile is the share of users with strictly fewer minutes. Null if
+     * the user has not been indexed.
+     */
+    long[] standing(int board, String username) {
+        drain();
+        rw.readLock().lock();
+        try {
+            RankedIndex index = boards[board];
+            Long score = index.score(username);
+            if (score == null) {
+                return null;
+            }
+            int users = index.size();
+            long below = index.countBelow(score);
+            return new long[] {index.rank(username), users, score, users == 0 ? 0 : below * 100 / users};
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    /** Users on the board, their minute sum, and the minutes at each requested percentile (0-100). */
+    long[] stats(int board, int... percentiles) {
+        drain();
+        rw.readLock().lock();
+        try {
+            RankedIndex index = boards[board];
+            int users = index.size();
+            long[] out = new long[2 + percentiles.length];
+            out[0] = users;
+            out[1] = index.sum();
+            for (int i = 0; i < percentiles.length; i++) {
+                if (users > 0) {
+                    // nearest rank from the bottom, converted to a rank from the top
+                    int fromBottom = Math.max(1, (int) Math.ceil(percentiles[i] / 100.0 * users));
+                    out[2 + i] = index.scoreAt(users - fromBottom + 1);
+                }
+            }
+            return out;
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+}
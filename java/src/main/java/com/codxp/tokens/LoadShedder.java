@@ -0,0 +1,76 @@
+package com.codxp.tokens;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Turns away a share of all requests while the server is slower than a
+ * latency target. Completed requests add their latency to the current
+ * window; whoever finishes the first request after a window ends compares
+ * that window's mean with the target and adjusts the admitted share: cut
+ * by a quarter when over target, raised by a twentieth when under. Rates
+ * and latencies are plain adders and compare-and-sets, so the request path
+ * never blocks.
+ */
+final class LoadShedder {
+    private static final long WINDOW_NANOS = 100_000_000L;
+    /** Admitted share in thousandths; never below this, so latency keeps being measured. */
+    private static final long MIN_ADMIT = 50;
+    private static final long FULL = 1000;
+
+    private final long targetNanos;
+    private final LongAdder windowNanos = new LongAdder();
+    private final LongAdder windowCount = new LongAdder();
+    private final AtomicLong windowEnd = new AtomicLong(System.nanoTime() + WINDOW_NANOS);
+    private final AtomicLong admit = new AtomicLong(FULL);
+    private final Metrics.Counter shed = Metrics.counter("codxp_shed_total",
+            "Requests refused with 503 because latency exceeded codxp.shed.targetMs.", "");
+
+    LoadShedder(long targetMillis) {
+        this.targetNanos = targetMillis * 1_000_000L;
+        Metrics.gauge("codxp_shed_admit_permille", "Share of requests currently admitted by the load shedder, in thousandths.",
+                "", admit::get);
+    }
+
+    /** From {@code codxp.shed.targetMs}; null (no shedding) when unset or zero. */
+    static LoadShedder fromConfig() {
+        long target = Long.getLong("codxp.shed.targetMs", 0);
+        return target > 0 ? new LoadShedder(target) : null;
+    }
+
+    /** Whether to serve a new request. */
+    boolean admit() {
+        long share = admit.get();
+        if (share >= FULL || ThreadLocalRandom.current().nextLong(FULL) < share) {
+            return true;
+        }
+        shed.inc();
+        return false;
+    }
+
+    /** Record an admitted request's latency. */
+    void completed(long nanos) {
+        windowNanos.add(nanos);
+        windowCount.increment();
+        long now = System.nanoTime();
+        long end = windowEnd.get();
+        if (now - end < 0 || !windowEnd.compareAndSet(end, now + WINDOW_NANOS)) {
+            return;
+        }
+        long count = windowCount.sumThenReset();
+        long total = windowNanos.sumThenReset();
+        if (count == 0) {
+            return;
+        }
+        boolean over = total / count > targetNanos;
+        admit.updateAndGet(share -> over
+                ? Math.max(MIN_ADMIT, share - share / 4)
+                : Math.min(FULL, share + FULL / 20));
+    }
+
+    /** Admitted share in thousandths. */
+    long admitted() {
+        return admit.get();
+    }
+}
@@ -0,0 +1,328 @@
+package com.codxp.tokens;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Single-file backend for large user counts. All users live in one
+ * memory-mapped file of fixed-width records, located through an in-memory
+ * username index built at open. Every change is first appended to a journal
+ * (slot number, full record image, CRC) and only then copied into the
+ * mapping, so after a crash the journal is replayed on the next open. The
+ * journal is truncated whenever the mapping has been forced to disk.
+ *
+ * <p>String fields hold at most {@value #MAX_STRING_BYTES} bytes of UTF-8.
+ * Reads run concurrently; writes are serialized, each costing one journal
+ * append and one record-sized copy.
+ */
+final class MappedUserStorage implements UserStorage {
+    private static final int MAGIC = 0x43585442;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int HDR_USED = 16;
+
+    private static final int STRING_FIELD = 64;
+    static final int MAX_STRING_BYTES = STRING_FIELD - 2;
+    private static final int OFF_USERNAME = 0;
+    private static final int OFF_HASH = OFF_USERNAME + STRING_FIELD;
+    private static final int OFF_TOKENS = OFF_HASH + STRING_FIELD;
+    private static final int OFF_COD_USERNAME = OFF_TOKENS + UserRecord.CELLS * 4;
+    private static final int OFF_PRESTIGE = OFF_COD_USERNAME + STRING_FIELD;
+    private static final int OFF_LEVEL = OFF_PRESTIGE + STRING_FIELD;
+    static final int RECORD_SIZE = 320;
+
+    private static final int JOURNAL_ENTRY = 4 + RECORD_SIZE + 8;
+    private static final int INITIAL_SLOTS = 1024;
+    private static final long CHECKPOINT_BYTES = 4L << 20;
+    private static final Metrics.Counter WRITTEN_BYTES = Metrics.counter("codxp_storage_written_bytes_total",
+            "Bytes written to storage files.", "backend=\"mapped\"");
+    private static final Metrics.Histogram CHECKPOINTS = Metrics.histogram("codxp_storage_checkpoint_seconds",
+            "Time spent forcing the mapped user file to disk and clearing its journal.", "");
+
+    private final FileChannel data;
+    private final FileChannel journal;
+    private final Map<String, Integer> index = new HashMap<>();
+    private final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+    private MappedByteBuffer map;
+    private int capacity;
+    private int used;
+
+    MappedUserStorage(Path dataFile, Path journalFile) throws IOException {
+        Files.createDirectories(dataFile.toAbsolutePath().getParent());
+        data = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (data.size() == 0) {
+            remap(INITIAL_SLOTS);
+            map.putInt(0, MAGIC);
+            map.putInt(4, FORMAT);
+            map.putInt(8, UserRecord.CELLS);
+            map.putInt(12, RECORD_SIZE);
+            map.putInt(HDR_USED, 0);
+        } else {
+            remap((int) ((data.size() - HEADER_SIZE) / RECORD_SIZE));
+            if (map.getInt(0) != MAGIC || map.getInt(4) != FORMAT
+                    || map.getInt(8) != UserRecord.CELLS || map.getInt(12) != RECORD_SIZE) {
+                throw new IOException("Unrecognised user storage file: " + dataFile);
+            }
+        }
+        used = map.getInt(HDR_USED);
+        replayJournal();
+        for (int slot = 0; slot < used; slot++) {
+            String name = getString(slotOffset(slot) + OFF_USERNAME);
+            if (!name.isEmpty()) {
+                index.put(name, slot);
+            }
+        }
+    }
+
+    private static long slotOffset(int slot) {
+        return HEADER_SIZE + (long) slot * RECORD_SIZE;
+    }
+
+    private void remap(int slots) throws IOException {
+        capacity = slots;
+        map = data.map(FileChannel.MapMode.READ_WRITE, 0, slotOffset(slots));
+    }
+
+    private void ensureCapacity(int slot) throws IOException {
+        if (slot < capacity) {
+            return;
+        }
+        int slots = capacity;
+        while (slots <= slot) {
+            slots *= 2;
+        }
+        map.force();
+        remap(slots);
+    }
+
+    /** Re-apply journal entries that may not have reached the mapped file, then clear the journal. */
+    private void replayJournal() throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(JOURNAL_ENTRY);
+        long pos = 0;
+        while (true) {
+            entry.clear();
+            while (entry.hasRemaining()) {
+                if (journal.read(entry, pos + entry.position()) < 0) break;
+            }
+            if (entry.hasRemaining()) {
+                break; // torn tail: the write never completed, so it was never applied
+            }
+            entry.flip();
+            int slot = entry.getInt();
+            byte[] image = new byte[RECORD_SIZE];
+            entry.get(image);
+            long crc = entry.getLong();
+            if (slot < 0 || crc != checksum(slot, image)) {
+                break;
+            }
+            ensureCapacity(slot);
+            map.put((int) slotOffset(slot), image);
+            used = Math.max(used, slot + 1);
+            pos += JOURNAL_ENTRY;
+        }
+        map.putInt(HDR_USED, used);
+        checkpoint();
+    }
+
+    private void checkpoint() throws IOException {
+        long start = System.nanoTime();
+        map.force();
+        journal.truncate(0);
+        journal.force(true);
+        CHECKPOINTS.observeSince(start);
+    }
+
+    private static long checksum(int slot, byte[] image) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(4).putInt(0, slot).array());
+        crc.update(image);
+        return crc.getValue();
+    }
+
+    private String getString(long offset) {
+        int at = (int) offset;
+        int len = Short.toUnsignedInt(map.getShort(at));
+        byte[] bytes = new byte[Math.min(len, MAX_STRING_BYTES)];
+        map.get(at + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer image, int offset, String value) throws IOException {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IOException("Value longer than " + MAX_STRING_BYTES + " bytes: " + value);
+        }
+        image.putShort(offset, (short) bytes.length);
+        image.put(offset + 2, bytes);
+    }
+
+    private UserRecord readSlot(int slot) {
+        long base = slotOffset(slot);
+        UserRecord r = new UserRecord(getString(base + OFF_USERNAME));
+        r.passwordHash = getString(base + OFF_HASH);
+        for (int i = 0; i < UserRecord.CELLS; i++) {
+            r.tokens[i] = map.getInt((int) base + OFF_TOKENS + i * 4);
+        }
+        r.codUsername = getString(base + OFF_COD_USERNAME);
+        r.prestige = getString(base + OFF_PRESTIGE);
+        r.level = map.getInt((int) base + OFF_LEVEL);
+        return r;
+    }
+
+    /** Journal then apply the record image; caller holds the write lock. */
+    private void writeSlot(int slot, UserRecord r) throws IOException {
+        writeSlot(slot, r, true);
+    }
+
+    /** As above; with {@code sync} false the caller forces the journal itself once a batch is done. */
+    private void writeSlot(int slot, UserRecord r, boolean sync) throws IOException {
+        ByteBuffer image = ByteBuffer.allocate(RECORD_SIZE);
+        putString(image, OFF_USERNAME, r.username);
+        putString(image, OFF_HASH, r.passwordHash);
+        for (int i = 0; i < UserRecord.CELLS; i++) {
+            image.putInt(OFF_TOKENS + i * 4, r.tokens[i]);
+        }
+        putString(image, OFF_COD_USERNAME, r.codUsername);
+        putString(image, OFF_PRESTIGE, r.prestige);
+        image.putInt(OFF_LEVEL, r.level);
+        byte[] bytes = image.array();
+
+        ByteBuffer entry = ByteBuffer.allocate(JOURNAL_ENTRY);
+        entry.putInt(slot).put(bytes).putLong(checksum(slot, bytes)).flip();
+        long pos = journal.size();
+        while (entry.hasRemaining()) {
+            pos += journal.write(entry, pos);
+        }
+        if (sync && UserFiles.fsyncPolicy() != UserFiles.FsyncPolicy.NONE) {
+            journal.force(false);
+        }
+        WRITTEN_BYTES.add(JOURNAL_ENTRY);
+
+        ensureCapacity(slot);
+        map.put((int) slotOffset(slot), bytes);
+        if (slot >= used) {
+            used = slot + 1;
+            map.putInt(HDR_USED, used);
+        }
+        if (journal.size() >= CHECKPOINT_BYTES) {
+            checkpoint();
+        }
+    }
+
+    @Override
+    public UserRecord load(String username) {
+        rw.readLock().lock();
+        try {
+            Integer slot = index.get(username);
+            return slot == null ? null : readSlot(slot);
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean create(UserRecord record) throws IOException {
+        rw.writeLock().lock();
+        try {
+            if (index.containsKey(record.username)) {
+                return false;
+            }
+            writeSlot(used, record);
+            index.put(record.username, used - 1);
+            return true;
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public UserRecord update(String username, Consumer<UserRecord> change) throws IOException {
+        rw.writeLock().lock();
+        try {
+            Integer slot = index.get(username);
+            UserRecord record = slot == null ? new UserRecord(username) : readSlot(slot);
+            change.accept(record);
+            record.username = username;
+            if (slot == null) {
+                writeSlot(used, record);
+                index.put(username, used - 1);
+            } else {
+                writeSlot(slot, record);
+            }
+            return record;
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public UserRecord updateExisting(String username, Consumer<UserRecord> change) throws IOException {
+        rw.writeLock().lock();
+        try {
+            Integer slot = index.get(username);
+            if (slot == null) {
+                return null;
+            }
+            UserRecord record = readSlot(slot);
+            change.accept(record);
+            record.username = username;
+            writeSlot(slot, record);
+            return record;
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    /** Journal the whole batch under one lock acquisition and a single journal fsync. */
+    @Override
+    public void putAll(List<UserRecord> records) throws IOException {
+        rw.writeLock().lock();
+        try {
+            for (UserRecord record : records) {
+                Integer slot = index.get(record.username);
+                if (slot == null) {
+                    writeSlot(used, record, false);
+                    index.put(record.username, used - 1);
+                } else {
+                    writeSlot(slot, record, false);
+                }
+            }
+            if (UserFiles.fsyncPolicy() != UserFiles.FsyncPolicy.NONE) {
+                journal.force(false);
+            }
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> usernames() {
+        rw.readLock().lock();
+        try {
+            return new ArrayList<>(index.keySet());
+        } finally {
+            rw.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        rw.writeLock().lock();
+        try {
+            checkpoint();
+            journal.close();
+            data.close();
+        } finally {
+            rw.writeLock().unlock();
+        }
+    }
+}
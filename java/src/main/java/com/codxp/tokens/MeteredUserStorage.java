@@ -0,0 +1,97 @@
+package com.codxp.tokens;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Wraps a {@link UserStorage} backend to time every call into
+ * {@code codxp_storage_seconds}, labelled by backend and operation.
+ */
+final class MeteredUserStorage implements UserStorage {
+    private final UserStorage delegate;
+    private final Metrics.Histogram load;
+    private final Metrics.Histogram create;
+    private final Metrics.Histogram update;
+    private final Metrics.Histogram putAll;
+    private final Metrics.Histogram list;
+
+    MeteredUserStorage(String backend, UserStorage delegate) {
+        this.delegate = delegate;
+        this.load = histogram(backend, "load");
+        this.create = histogram(backend, "create");
+        this.update = histogram(backend, "update");
+        this.putAll = histogram(backend, "putAll");
+        this.list = histogram(backend, "usernames");
+    }
+
+    private static Metrics.Histogram histogram(String backend, String op) {
+        return Metrics.histogram("codxp_storage_seconds", "Time spent in user storage calls.",
+                "backend=" + Metrics.quote(backend) + ",op=" + Metrics.quote(op));
+    }
+
+    @Override
+    public UserRecord load(String username) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return delegate.load(username);
+        } finally {
+            load.observeSince(start);
+        }
+    }
+
+    @Override
+    public boolean create(UserRecord record) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return delegate.create(record);
+        } finally {
+            create.observeSince(start);
+        }
+    }
+
+    @Override
+    public UserRecord update(String username, Consumer<UserRecord> change) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return delegate.update(username, change);
+        } finally {
+            update.observeSince(start);
+        }
+    }
+
+    @Override
+    public UserRecord updateExisting(String username, Consumer<UserRecord> change) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return delegate.updateExisting(username, change);
+        } finally {
+            update.observeSince(start);
+        }
+    }
+
+    @Override
+    public void putAll(List<UserRecord> records) throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.putAll(records);
+        } finally {
+            putAll.observeSince(start);
+        }
+    }
+
+    @Override
+    public List<String> usernames() throws IOException {
+        long start = System.nanoTime();
+        try {
+            return delegate.usernames();
+        } finally {
+            list.observeSince(start);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
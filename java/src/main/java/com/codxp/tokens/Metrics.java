@@ -0,0 +1,167 @@
+package com.codxp.tokens;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide metrics in the Prometheus text exposition format, served by
+ * {@code GET /metrics}. Counters and histogram buckets are {@link LongAdder}s,
+ * so recording a value is a few uncontended adds and never takes a lock;
+ * the cost of formatting is paid only when the endpoint is scraped.
+ *
+ * <p>Metrics are created once (typically into a static field) by name and a
+ * preformatted label string such as {@code route="/tokens",method="GET"};
+ * asking again for the same name and labels returns the same instance.
+ */
+final class Metrics {
+    /** Histogram upper bounds in seconds, from 50µs (a cache hit) to 2.5s (a slow bcrypt). */
+    private static final double[] BOUNDS = {
+            0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5
+    };
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1e9);
+        }
+    }
+
+    private static final ConcurrentSkipListMap<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        void inc() {
+            value.increment();
+        }
+
+        void add(long n) {
+            value.add(n);
+        }
+    }
+
+    /** Latency histogram; observations are in nanoseconds, exposed in seconds. */
+    static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(long nanos) {
+            int i = 0;
+            while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        /** Record the time elapsed since {@code startNanos}, a {@link System#nanoTime()} reading. */
+        void observeSince(long startNanos) {
+            observe(System.nanoTime() - startNanos);
+        }
+    }
+
+    private static final class Family {
+        final String type;
+        final String help;
+        final ConcurrentHashMap<String, Object> children = new ConcurrentHashMap<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private static Object child(String name, String type, String help, String labels, Supplier<Object> create) {
+        Family family = FAMILIES.computeIfAbsent(name, n -> new Family(type, help));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family.children.computeIfAbsent(labels, l -> create.get());
+    }
+
+    static Counter counter(String name, String help, String labels) {
+        return (Counter) child(name, "counter", help, labels, Counter::new);
+    }
+
+    static Histogram histogram(String name, String help, String labels) {
+        return (Histogram) child(name, "histogram", help, labels, Histogram::new);
+    }
+
+    /** A value read at scrape time, such as a queue depth; replaces an earlier registration. */
+    static void gauge(String name, String help, String labels, LongSupplier value) {
+        register(name, "gauge", help, labels, value);
+    }
+
+    /** A monotonically increasing value maintained elsewhere, read at scrape time. */
+    static void counterFunction(String name, String help, String labels, LongSupplier value) {
+        register(name, "counter", help, labels, value);
+    }
+
+    private static void register(String name, String type, String help, String labels, LongSupplier value) {
+        child(name, type, help, labels, () -> value);
+        FAMILIES.get(name).children.put(labels, value);
+    }
+
+    /** All metrics in the Prometheus text format. */
+    static String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Family> e : FAMILIES.entrySet()) {
+            String name = e.getKey();
+            Family family = e.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            new ConcurrentSkipListMap<>(family.children).forEach((labels, metric) -> {
+                if (metric instanceof Histogram) {
+                    appendHistogram(out, name, labels, (Histogram) metric);
+                } else {
+                    long value = metric instanceof Counter ? ((Counter) metric).value.sum()
+                            : ((LongSupplier) metric).getAsLong();
+                    appendSample(out, name, labels, null, Long.toString(value));
+                }
+            });
+        }
+        return out.toString();
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, String labels, Histogram h) {
+        long cumulative = 0;
+        for (int i = 0; i < h.buckets.length; i++) {
+            cumulative += h.buckets[i].sum();
+            String le = i < BOUNDS.length ? BigDecimal.valueOf(BOUNDS[i]).stripTrailingZeros().toPlainString() : "+Inf";
+            appendSample(out, name + "_bucket", labels, "le=\"" + le + "\"", Long.toString(cumulative));
+        }
+        appendSample(out, name + "_sum", labels, null, Double.toString(h.sumNanos.sum() / 1e9));
+        appendSample(out, name + "_count", labels, null, Long.toString(cumulative));
+    }
+
+    private static void appendSample(StringBuilder out, String name, String labels, String extra, String value) {
+        out.append(name);
+        if (!labels.isEmpty() || extra != null) {
+            out.append('{').append(labels);
+            if (extra != null) {
+                out.append(labels.isEmpty() ? "" : ",").append(extra);
+            }
+            out.append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    /** Quote a label value, escaping as the text format requires. */
+    static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+}
@@ -0,0 +1,219 @@
+package com.codxp.tokens;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Order-statistic treap of (name, score) pairs, ordered by score descending
+ * and then by name, so rank 1 is the highest score. Every node knows the size
+ * and score sum of its subtree, which makes insert, remove, rank-of and
+ * select-by-rank O(log n) expected. Not thread-safe.
+ */
+final class RankedIndex {
+    /** One ranked entry as returned by {@link #page}. */
+    static final class Ranked {
+        final int rank;
+        final String name;
+        final long score;
+
+        Ranked(int rank, String name, long score) {
+            this.rank = rank;
+            this.name = name;
+            this.score = score;
+        }
+    }
+
+    private static final class Node {
+        final String name;
+        final long score;
+        final int priority = ThreadLocalRandom.current().nextInt();
+        Node left;
+        Node right;
+        int size = 1;
+        long sum;
+
+        Node(String name, long score) {
+            this.name = name;
+            this.score = score;
+            this.sum = score;
+        }
+    }
+
+    private final Map<String, Long> scores = new HashMap<>();
+    private Node root;
+
+    int size() {
+        return size(root);
+    }
+
+    /** Sum of all scores. */
+    long sum() {
+        return root == null ? 0 : root.sum;
+    }
+
+    /** The name's current score, or null if it is not indexed. */
+    Long score(String name) {
+        return scores.get(name);
+    }
+
+    /** All indexed names, in no particular order. */
+    List<String> names() {
+        return new ArrayList<>(scores.keySet());
+    }
+
+    /** Insert the name or move it to its new score. */
+    void put(String name, long score) {
+        Long old = scores.put(name, score);
+        if (old != null) {
+            if (old == score) {
+                return;
+            }
+            root = remove(root, old, name);
+        }
+        Node[] parts = split(root, score, name);
+        root = merge(merge(parts[0], new Node(name, score)), parts[1]);
+    }
+
+    void remove(String name) {
+        Long old = scores.remove(name);
+        if (old != null) {
+            root = remove(root, old, name);
+        }
+    }
+
+    /** 1-based rank of the name, or 0 if it is not indexed. */
+    int rank(String name) {
+        Long score = scores.get(name);
+        return score == null ? 0 : countBefore(score, name) + 1;
+    }
+
+    /** Number of entries with a score strictly below {@code score}. */
+    int countBelow(long score) {
+        int atOrAbove = 0;
+        Node n = root;
+        while (n != null) {
+            if (n.score >= score) {
+                atOrAbove += size(n.left) + 1;
+                n = n.right;
+            } else {
+                n = n.left;
+            }
+        }
+        return size() - atOrAbove;
+    }
+
+    /** Score at 1-based {@code rank}; the caller checks {@code 1 <= rank <= size()}. */
+    long scoreAt(int rank) {
+        Node n = root;
+        int k = rank - 1;
+        while (true) {
+            int leftSize = size(n.left);
+            if (k < leftSize) {
+                n = n.left;
+            } else if (k == leftSize) {
+                return n.score;
+            } else {
+                k -= leftSize + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    /** Up to {@code limit} entries starting at 1-based {@code fromRank}. */
+    List<Ranked> page(int fromRank, int limit) {
+        List<Ranked> out = new ArrayList<>(Math.max(0, Math.min(limit, size() - fromRank + 1)));
+        collect(root, fromRank - 1, limit, 0, out);
+        return out;
+    }
+
+    /** In-order walk that skips whole subtrees before {@code skip}; {@code base} is the rank offset of n's subtree. */
+    private static void collect(Node n, int skip, int limit, int base, List<Ranked> out) {
+        if (n == null || out.size() >= limit) {
+            return;
+        }
+        int leftSize = size(n.left);
+        if (skip < base + leftSize) {
+            collect(n.left, skip, limit, base, out);
+        }
+        int rank = base + leftSize;
+        if (rank >= skip && out.size() < limit) {
+            out.add(new Ranked(rank + 1, n.name, n.score));
+        }
+        collect(n.right, skip, limit, rank + 1, out);
+    }
+
+    private int countBefore(long score, String name) {
+        int count = 0;
+        Node n = root;
+        while (n != null) {
+            if (before(n.score, n.name, score, name)) {
+                count += size(n.left) + 1;
+                n = n.right;
+            } else {
+                n = n.left;
+            }
+        }
+        return count;
+    }
+
+    /** Whether (s1, n1) is ranked ahead of (s2, n2). */
+    private static boolean before(long s1, String n1, long s2, String n2) {
+        return s1 != s2 ? s1 > s2 : n1.compareTo(n2) < 0;
+    }
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    private static Node update(Node n) {
+        n.size = 1 + size(n.left) + size(n.right);
+        n.sum = n.score + (n.left == null ? 0 : n.left.sum) + (n.right == null ? 0 : n.right.sum);
+        return n;
+    }
+
+    /** Split into entries ranked ahead of (score, name) and the rest. */
+    private static Node[] split(Node n, long score, String name) {
+        if (n == null) {
+            return new Node[2];
+        }
+        if (before(n.score, n.name, score, name)) {
+            Node[] parts = split(n.right, score, name);
+            n.right = parts[0];
+            parts[0] = update(n);
+            return parts;
+        }
+        Node[] parts = split(n.left, score, name);
+        n.left = parts[1];
+        parts[1] = update(n);
+        return parts;
+    }
+
+    private static Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            return update(a);
+        }
+        b.left = merge(a, b.left);
+        return update(b);
+    }
+
+    private static Node remove(Node n, long score, String name) {
+        if (n == null) {
+            return null;
+        }
+        if (n.score == score && n.name.equals(name)) {
+            return merge(n.left, n.right);
+        }
+        if (before(score, name, n.score, n.name)) {
+            n.left = remove(n.left, score, name);
+        } else {
+            n.right = remove(n.right, score, name);
+        }
+        return update(n);
+    }
+}
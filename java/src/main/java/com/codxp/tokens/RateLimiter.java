@@ -0,0 +1,126 @@
+package com.codxp.tokens;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token-bucket rate limit per key (a username or client IP). Each bucket is
+ * a single {@link AtomicLong} holding the bucket's "theoretical arrival
+ * time" (the GCRA form of a token bucket): a request is allowed if that time
+ * is at most {@code burst} intervals ahead of now, and pushes it one
+ * interval further with a compare-and-set. No locks are taken.
+ *
+ * <p>Buckets live in striped maps, each capped at {@code maxKeys / STRIPES}
+ * entries. A bucket whose arrival time has passed is full again and carries
+ * no state, so a stripe that reaches its cap drops those idle buckets first.
+ * That scan runs at most once per {@link #SCAN_SPACING_NANOS} per stripe; a
+ * new key that finds its stripe full in between is refused, never let
+ * through untracked.
+ */
+final class RateLimiter {
+    private static final int STRIPES = 16;
+    /** Shortest time between two idle-bucket scans of one full stripe. */
+    private static final long SCAN_SPACING_NANOS = 10_000_000;
+
+    private final String name;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final int maxPerStripe;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Metrics.Counter limited;
+
+    private static final class Stripe {
+        final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+        /** {@link System#nanoTime} before which a full stripe is not scanned again. */
+        final AtomicLong nextScan = new AtomicLong(System.nanoTime());
+    }
+
+    /** {@code perSecond} requests per second on average, up to {@code burst} at once. */
+    RateLimiter(String name, double perSecond, int burst, int maxKeys) {
+        this.name = name;
+        this.intervalNanos = (long) (1e9 / perSecond);
+        this.toleranceNanos = intervalNanos * Math.max(1, burst);
+        this.maxPerStripe = Math.max(1, maxKeys / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.limited = Metrics.counter("codxp_rate_limited_total", "Requests refused with 429 by a rate limit.",
+                "limit=" + Metrics.quote(name));
+    }
+
+    /**
+     * Build from {@code codxp.rate.<name>}, given as {@code perSecond} or
+     * {@code perSecond/burst} (burst defaults to one second's worth). Returns
+     * null when the property is unset, i.e. unlimited.
+     */
+    static RateLimiter fromConfig(String name) {
+        String spec = System.getProperty("codxp.rate." + name, "");
+        if (spec.isBlank()) {
+            return null;
+        }
+        String[] parts = spec.split("/");
+        double perSecond = Double.parseDouble(parts[0].trim());
+        int burst = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : (int) Math.max(1, Math.ceil(perSecond));
+        return new RateLimiter(name, perSecond, burst, Integer.getInteger("codxp.rate.maxKeys", 100_000));
+    }
+
+    String name() {
+        return name;
+    }
+
+    /** Take one token from the key's bucket; returns 0 if allowed, else the nanoseconds until it would be. */
+    long acquire(String key) {
+        long now = System.nanoTime();
+        AtomicLong bucket = bucket(key, now);
+        if (bucket == null) {
+            limited.inc();
+            return intervalNanos;
+        }
+        while (true) {
+            long tat = bucket.get();
+            long start = Math.max(tat, now);
+            long wait = start + intervalNanos - toleranceNanos - now;
+            if (wait > 0) {
+                limited.inc();
+                return wait;
+            }
+            if (bucket.compareAndSet(tat, start + intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    /** The key's bucket, created if needed; null if its stripe is full of buckets still in use. */
+    private AtomicLong bucket(String key, long now) {
+        Stripe stripe = stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+        AtomicLong bucket = stripe.buckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (stripe.buckets.size() >= maxPerStripe) {
+            long next = stripe.nextScan.get();
+            if (now - next < 0 || !stripe.nextScan.compareAndSet(next, now + SCAN_SPACING_NANOS)) {
+                return null;
+            }
+            evictIdle(stripe.buckets, now);
+            if (stripe.buckets.size() >= maxPerStripe) {
+                return null;
+            }
+        }
+        return stripe.buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+    }
+
+    /** Drop buckets that have refilled completely; they would be recreated identical. */
+    private static void evictIdle(ConcurrentHashMap<String, AtomicLong> buckets, long now) {
+        buckets.values().removeIf(tat -> tat.get() - now <= 0);
+    }
+
+    /** Buckets currently held, idle or not. */
+    long size() {
+        long n = 0;
+        for (Stripe stripe : stripes) {
+            n += stripe.buckets.size();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,255 @@
+package com.codxp.tokens;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Versions and pre-serialized bodies for the per-user GET endpoints.
+ * Token responses are versioned by {@link TokenStore.State#version}; profiles
+ * get a per-user counter that writers advance, see {@link #beginProfileWrite}.
+ * An ETag is that version prefixed with a per-process epoch, because
+ * versions restart at zero when the server does.
+ *
+ * <p>The latest version of each body is kept, along with its bytes in each
+ * {@link BodyFormat} and gzipped form asked for so far. Repeated reads of
+ * unchanged data are served without serializing or compressing. A matching
+ * {@code If-None-Match} needs neither the bytes nor the disk. An ETag names
+ * the data version, so it is the same in every format and encoding; the
+ * responses say {@code Vary: Accept, Accept-Encoding}.
+ */
+final class ResponseCache {
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+    /** Produces a response body; may read storage. */
+    interface BodySource {
+        Object get() throws IOException;
+    }
+
+    /** Smaller bodies are sent uncompressed; gzip would gain little and cost a buffer per response. */
+    static final int GZIP_MIN_BYTES = Integer.getInteger("codxp.gzipMinBytes", 1024);
+    static final int GZIP_LEVEL = Integer.getInteger("codxp.gzipLevel", 6);
+    /** How long an unconditional profile write waits for one already in flight. */
+    static final long PROFILE_WAIT_MILLIS = 2000;
+
+    private static final class Body {
+        final long version;
+        final Object value;
+        /** Bytes at {@code 2 * format.ordinal()}, gzipped one slot later; filled in on first use. */
+        final AtomicReferenceArray<byte[]> encodings = new AtomicReferenceArray<>(2 * BodyFormat.values().length);
+
+        Body(long version, Object value) {
+            this.version = version;
+            this.value = value;
+        }
+
+        byte[] encoding(BodyFormat format, boolean gzipped) throws IOException {
+            int slot = 2 * format.ordinal() + (gzipped ? 1 : 0);
+            byte[] bytes = encodings.get(slot);
+            if (bytes == null) {
+                bytes = gzipped ? gzip(encoding(format, false)) : format.mapper.writeValueAsBytes(value);
+                encodings.set(slot, bytes);
+            }
+            return bytes;
+        }
+    }
+
+    /** A body as it goes on the wire. */
+    static final class Encoded {
+        final byte[] bytes;
+        final boolean gzipped;
+
+        Encoded(byte[] bytes, boolean gzipped) {
+            this.bytes = bytes;
+            this.gzipped = gzipped;
+        }
+    }
+
+    /** One cached representation per user, such as {@code /tokens}. */
+    final class Resource {
+        private final ConcurrentHashMap<String, Body> bodies = new ConcurrentHashMap<>();
+
+        /** The JSON body for {@code version}, reusing the cached bytes when they are that version. */
+        byte[] bytes(String username, long version, BodySource source) throws IOException {
+            return body(username, version, source).encoding(BodyFormat.JSON, false);
+        }
+
+        /**
+         * The body for {@code version} in {@code format}, gzipped if the client
+         * accepts it and the body is at least {@link #GZIP_MIN_BYTES}.
+         */
+        Encoded encoded(String username, long version, BodyFormat format, boolean gzip, BodySource source)
+                throws IOException {
+            Body body = body(username, version, source);
+            byte[] plain = body.encoding(format, false);
+            if (!gzip || plain.length < GZIP_MIN_BYTES) {
+                return new Encoded(plain, false);
+            }
+            return new Encoded(body.encoding(format, true), true);
+        }
+
+        private Body body(String username, long version, BodySource source) throws IOException {
+            Body cached = bodies.get(username);
+            if (cached != null && cached.version == version) {
+                return cached;
+            }
+            Body fresh = new Body(version, source.get());
+            // never replace a newer body that a concurrent request cached meanwhile
+            Body kept = bodies.merge(username, fresh, (old, next) -> old.version > next.version ? old : next);
+            return kept.version == version ? kept : fresh;
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 32);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out) {
+            {
+                def.setLevel(GZIP_LEVEL);
+            }
+        }) {
+            gz.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    /** Whether an {@code Accept-Encoding} header allows gzip. */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+            if ((name.equals("gzip") || name.equals("*")) && BodyFormat.quality(parts) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** {@link #expectedVersion} of a request without a usable precondition. */
+    static final long ANY = -1;
+    /** {@link #expectedVersion} of an ETag from another server run; it never matches. */
+    static final long STALE = -2;
+
+    private final ConcurrentHashMap<String, AtomicLong> profileVersions = new ConcurrentHashMap<>();
+
+    Resource resource() {
+        return new Resource();
+    }
+
+    static String etag(long version) {
+        return "\"" + EPOCH + "-" + version + "\"";
+    }
+
+    /** Whether an {@code If-None-Match} header names {@code etag} (or is {@code *}). */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The version an {@code If-Match} header requires: {@link #ANY} when the
+     * header is absent or {@code *}, {@link #STALE} when it names a tag this
+     * process did not issue.
+     */
+    static long expectedVersion(String ifMatch) {
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return ANY;
+        }
+        String tag = ifMatch.trim();
+        String prefix = "\"" + EPOCH + "-";
+        if (!tag.startsWith(prefix) || !tag.endsWith("\"")) {
+            return STALE;
+        }
+        try {
+            return Long.parseLong(tag.substring(prefix.length(), tag.length() - 1));
+        } catch (NumberFormatException e) {
+            return STALE;
+        }
+    }
+
+    long profileVersion(String username) {
+        AtomicLong v = profileVersions.get(username);
+        return v == null ? 0 : v.get();
+    }
+
+    /**
+     * Claim the right to write the user's profile. A profile version is even
+     * while no write is in flight; the writer moves it to the next odd number
+     * with a compare-and-set, and {@link #endProfileWrite} moves it on to the
+     * next even one once the write has landed. Returns the claimed version,
+     * or -1 if {@code expected} is not the current version (or another write
+     * is in flight). With {@link #ANY} the claim waits on the user's version
+     * for in-flight writes instead, and gives up with -1 after
+     * {@link #PROFILE_WAIT_MILLIS}.
+     */
+    long beginProfileWrite(String username, long expected) {
+        AtomicLong v = profileVersions.computeIfAbsent(username, u -> new AtomicLong());
+        while (true) {
+            long current = v.get();
+            if (expected != ANY && current != expected) {
+                return -1;
+            }
+            if ((current & 1) == 0) {
+                if (v.compareAndSet(current, current + 1)) {
+                    return current + 1;
+                }
+                continue;
+            }
+            if (expected != ANY || !awaitProfileWrite(v)) {
+                return -1;
+            }
+        }
+    }
+
+    /** Wait until no write is in flight on {@code v}; false if that took too long or was interrupted. */
+    private static boolean awaitProfileWrite(AtomicLong v) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROFILE_WAIT_MILLIS);
+        synchronized (v) {
+            while ((v.get() & 1) != 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(v, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Publish a claimed profile write, successful or not; returns the version now current. */
+    long endProfileWrite(String username) {
+        AtomicLong v = profileVersions.get(username);
+        long version = v.incrementAndGet();
+        synchronized (v) {
+            v.notifyAll();
+        }
+        return version;
+    }
+
+    /** Call after the user's profile was written outside a claim, so cached bodies and ETags move on. */
+    void profileChanged(String username) {
+        profileVersions.computeIfAbsent(username, u -> new AtomicLong()).addAndGet(2);
+    }
+}
@@ -0,0 +1,52 @@
+package com.codxp.tokens;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Consistent-hash ring that assigns each username to one node. Every node
+ * is placed on the ring at {@code vnodes} points; a username belongs to the
+ * first point at or after its own hash, wrapping around. Adding or removing
+ * a node therefore only moves the users between that node's points and
+ * their predecessors, about 1/N of them. Immutable.
+ */
+final class ShardRing {
+    private final List<String> nodes;
+    private final NavigableMap<Long, String> points = new TreeMap<>();
+
+    /** {@code nodes} are base URLs such as {@code http://10.0.0.2:7001}; order does not matter. */
+    ShardRing(Collection<String> nodes, int vnodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A shard ring needs at least one node");
+        }
+        List<String> sorted = new ArrayList<>(new TreeSet<>(nodes));
+        this.nodes = Collections.unmodifiableList(sorted);
+        for (String node : sorted) {
+            for (int i = 0; i < vnodes; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    List<String> nodes() {
+        return nodes;
+    }
+
+    String owner(String username) {
+        Map.Entry<Long, String> e = points.ceilingEntry(hash(username));
+        return e != null ? e.getValue() : points.firstEntry().getValue();
+    }
+
+    /** First 8 bytes of the MD5 digest; well spread and identical on every node and JVM. */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.codxp.tokens;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.HttpStatus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Spreads users over several TokenServer nodes that share nothing but the
+ * JWT secret. Each node owns the users a {@link ShardRing} assigns to it and
+ * keeps them in its own data directory. Any node accepts any request: one
+ * for a user owned elsewhere is forwarded to the owner and its response
+ * relayed, so clients and load balancers need not know the ring. Event
+ * streams are redirected instead, since they never end.
+ *
+ * <p>Configured by {@code codxp.shard.nodes} (comma-separated base URLs of
+ * all nodes) and {@code codxp.shard.self} (this node's URL in that list).
+ * All nodes must share {@code codxp.jwt.secret} so a token verifies on any
+ * of them; a node without it refuses to start. Nodes prove to each other that a request was forwarded by a peer with
+ * {@code codxp.shard.secret} (by default the JWT secret); forwarding headers
+ * on any other request are ignored.
+ */
+final class ShardRouter {
+    /** Forwarding hops so far; nodes whose rings disagree during a rebalance could otherwise bounce a request forever. */
+    static final String HOPS_HEADER = "X-Codxp-Hops";
+    /** Carries the shared secret on requests one node sends another. */
+    static final String PEER_HEADER = "X-Codxp-Peer";
+    /** Context attribute holding the stamp of a write's {@link #moveGuard} read lock. */
+    private static final String MOVE_GUARD = "codxp.moveGuard";
+    private static final int MAX_HOPS = 2;
+    private static final List<String> REQUEST_HEADERS = List.of(
+            "Authorization", "Content-Type", "Accept", "Accept-Encoding", "If-Match", "If-None-Match");
+    /** Bodies are relayed as the owner encoded them, so its Content-Encoding goes along. */
+    private static final List<String> RESPONSE_HEADERS = List.of(
+            "Content-Type", "Content-Encoding", "Vary", "ETag", "Cache-Control", "Retry-After", "Location",
+            "Content-Disposition");
+
+    /** Thrown once a request has been answered by another node, to skip the local handlers. */
+    static final class Forwarded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Forwarded() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final String self;
+    private final byte[] secret;
+    private final int vnodes;
+    private final Duration timeout;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(2))
+            .build();
+    private volatile ShardRing ring;
+    /** Users being handed to another node; their writes are refused until the ring switches. */
+    private volatile Set<String> moving = Set.of();
+    /**
+     * Read-locked by a write to an owned user from its {@link #moving} check
+     * until it has finished, and write-locked to change {@link #moving}, so
+     * no write passes the check and lands after its user's export.
+     */
+    private final StampedLock moveGuard = new StampedLock();
+
+    ShardRouter(String self, String secret, List<String> nodes, int vnodes, Duration timeout) {
+        this.self = self;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.vnodes = vnodes;
+        this.timeout = timeout;
+        this.ring = new ShardRing(nodes, vnodes);
+        if (!ring.nodes().contains(self)) {
+            throw new IllegalArgumentException("codxp.shard.self " + self + " is not in codxp.shard.nodes");
+        }
+    }
+
+    /** The configured router, or null when the server runs unsharded. */
+    static ShardRouter fromConfig() {
+        String nodes = System.getProperty("codxp.shard.nodes", "");
+        if (nodes.isBlank()) {
+            return null;
+        }
+        String self = System.getProperty("codxp.shard.self");
+        if (self == null) {
+            throw new IllegalArgumentException("codxp.shard.nodes is set but codxp.shard.self is not");
+        }
+        // a token must verify on whichever node it reaches, so every node signs with the same fixed key
+        String jwtSecret = System.getProperty("codxp.jwt.secret", "");
+        if (jwtSecret.isEmpty()) {
+            throw new IllegalArgumentException("codxp.shard.nodes is set but codxp.jwt.secret is not");
+        }
+        String secret = System.getProperty("codxp.shard.secret", jwtSecret);
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("codxp.shard.secret is empty");
+        }
+        return new ShardRouter(trimSlash(self), secret, parseNodes(nodes),
+                Integer.getInteger("codxp.shard.vnodes", 128),
+                Duration.ofMillis(Long.getLong("codxp.shard.timeoutMs", 5000)));
+    }
+
+    static List<String> parseNodes(String list) {
+        List<String> nodes = new ArrayList<>();
+        for (String node : list.split(",")) {
+            if (!node.isBlank()) {
+                nodes.add(trimSlash(node.trim()));
+            }
+        }
+        return nodes;
+    }
+
+    private static String trimSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    String self() {
+        return self;
+    }
+
+    List<String> nodes() {
+        return ring.nodes();
+    }
+
+    /** Whether the request was sent by another node, proven by the shared secret. */
+    boolean isPeer(Context ctx) {
+        String value = ctx.header(PEER_HEADER);
+        return value != null && MessageDigest.isEqual(value.getBytes(StandardCharsets.UTF_8), secret);
+    }
+
+    /** Forwarding hops so far; only a peer's count is believed. */
+    private int hops(Context ctx) {
+        return isPeer(ctx) ? parseHops(ctx.header(HOPS_HEADER)) : 0;
+    }
+
+    boolean owns(String username) {
+        return ring.owner(username).equals(self);
+    }
+
+    String owner(String username) {
+        return ring.owner(username);
+    }
+
+    /**
+     * GET {@code pathAndQuery} from {@code node} on behalf of the caller,
+     * completing with the body of a 200 response and exceptionally otherwise.
+     */
+    CompletableFuture<byte[]> fetch(String node, String pathAndQuery, Context ctx) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(node + pathAndQuery))
+                .timeout(timeout)
+                .header(HOPS_HEADER, Integer.toString(hops(ctx) + 1))
+                .header(PEER_HEADER, new String(secret, StandardCharsets.UTF_8));
+        String authorization = ctx.header("Authorization");
+        if (authorization != null) {
+            request.header("Authorization", authorization);
+        }
+        Metrics.counter("codxp_shard_forwarded_total", "Requests forwarded to the node owning the user.",
+                "node=" + Metrics.quote(node)).inc();
+        return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray()).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                throw new CompletionException(new IOException("Node " + node + " answered " + response.statusCode()));
+            }
+            return response.body();
+        });
+    }
+
+    /**
+     * Let the request through if this node owns {@code username}; otherwise
+     * answer it from the owner and throw {@link Forwarded}. A write let
+     * through holds off rebalancing until {@link #release} is called for it.
+     */
+    void route(Context ctx, String username) {
+        String owner = ring.owner(username);
+        if (owner.equals(self)) {
+            if (ctx.method() != HandlerType.GET) {
+                long stamp = moveGuard.readLock();
+                if (moving.contains(username)) {
+                    moveGuard.unlockRead(stamp);
+                    refuse(ctx, "User is moving to another node");
+                }
+                ctx.attribute(MOVE_GUARD, stamp);
+            }
+            return;
+        }
+        int hops = hops(ctx);
+        if (hops >= MAX_HOPS) {
+            refuse(ctx, "Shard membership is changing");
+        }
+        String query = ctx.queryString();
+        String target = owner + ctx.path() + (query == null ? "" : "?" + query);
+        if ("/events".equals(ctx.path())) {
+            ctx.redirect(target, HttpStatus.TEMPORARY_REDIRECT);
+            throw new Forwarded();
+        }
+        Metrics.counter("codxp_shard_forwarded_total", "Requests forwarded to the node owning the user.",
+                "node=" + Metrics.quote(owner)).inc();
+        byte[] body = ctx.bodyAsBytes();
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(target))
+                .timeout(timeout)
+                .method(ctx.method().name(), body.length == 0
+                        ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofByteArray(body))
+                .header(HOPS_HEADER, Integer.toString(hops + 1))
+                .header(PEER_HEADER, new String(secret, StandardCharsets.UTF_8));
+        for (String name : REQUEST_HEADERS) {
+            String value = ctx.header(name);
+            if (value != null) {
+                request.header(name, value);
+            }
+        }
+        try {
+            HttpResponse<byte[]> response = client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+            ctx.status(response.statusCode());
+            for (String name : RESPONSE_HEADERS) {
+                response.headers().firstValue(name).ifPresent(value -> ctx.header(name, value));
+            }
+            ctx.result(response.body());
+        } catch (IOException e) {
+            ctx.status(HttpStatus.BAD_GATEWAY).result("Node " + owner + " is unavailable");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ctx.status(HttpStatus.BAD_GATEWAY).result("Interrupted while forwarding to " + owner);
+        }
+        throw new Forwarded();
+    }
+
+    /** Call once a request let through by {@link #route} has been answered. */
+    void release(Context ctx) {
+        Long stamp = ctx.attribute(MOVE_GUARD);
+        if (stamp != null) {
+            ctx.attribute(MOVE_GUARD, null);
+            moveGuard.unlockRead(stamp);
+        }
+    }
+
+    private static int parseHops(String value) {
+        try {
+            return value == null ? 0 : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return MAX_HOPS;
+        }
+    }
+
+    private static void refuse(Context ctx, String message) {
+        ctx.header("Retry-After", "1");
+        ctx.status(HttpStatus.SERVICE_UNAVAILABLE).result(message);
+        throw new Forwarded();
+    }
+
+    /**
+     * Switch this node to a new membership. Users this node owns now but not
+     * under {@code nodes} are streamed to their new owners' {@code /admin/import}
+     * (authorized with the caller's {@code authorization} header), and only
+     * then does the ring switch; meanwhile their writes get 503. If any
+     * transfer fails the old ring stays in place and the rebalance can simply
+     * be repeated. The moved records stay behind as inert copies, since the
+     * ring never routes to them again. Returns users moved per node.
+     */
+    synchronized Map<String, Long> rebalance(List<String> nodes, String authorization, UserStorage storage,
+                                             TokenStore store) throws IOException, InterruptedException {
+        ShardRing current = ring;
+        ShardRing next = new ShardRing(nodes, vnodes);
+        Map<String, List<String>> byNode = new TreeMap<>();
+        for (String username : storage.usernames()) {
+            String newOwner = next.owner(username);
+            if (current.owner(username).equals(self) && !newOwner.equals(self)) {
+                byNode.computeIfAbsent(newOwner, n -> new ArrayList<>()).add(username);
+            }
+        }
+        Set<String> leaving = new HashSet<>();
+        byNode.values().forEach(leaving::addAll);
+        // waits for writes already past the check, so the flush below includes them
+        long stamp = moveGuard.writeLock();
+        moving = leaving;
+        moveGuard.unlockWrite(stamp);
+        try {
+            store.flush();
+            Map<String, Long> moved = new LinkedHashMap<>();
+            for (Map.Entry<String, List<String>> e : byNode.entrySet()) {
+                moved.put(e.getKey(), send(e.getKey(), e.getValue(), authorization, storage));
+            }
+            ring = next;
+            return moved;
+        } finally {
+            moving = Set.of();
+        }
+    }
+
+    private long send(String node, List<String> usernames, String authorization, UserStorage storage)
+            throws IOException, InterruptedException {
+        Path batch = Files.createTempFile("codxp-rebalance", ".ndjson");
+        try {
+            long n;
+            try (OutputStream out = Files.newOutputStream(batch)) {
+                n = UserTransfer.export(storage, usernames, out);
+            }
+            HttpRequest request = HttpRequest.newBuilder(URI.create(node + "/admin/import"))
+                    .header("Content-Type", "application/x-ndjson")
+                    .header("Authorization", authorization)
+                    .POST(HttpRequest.BodyPublishers.ofFile(batch))
+                    .build();
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IOException("Import on " + node + " failed with " + response.statusCode() + ": " + response.body());
+            }
+            return n;
+        } finally {
+            Files.deleteIfExists(batch);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.codxp.tokens;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tokens and totals of several users in one response, for {@code GET /squad}.
+ * Each user is loaded on a shared pool and its element of the JSON array is
+ * written as soon as it is ready, so elements arrive in completion order and
+ * a slow file holds up nothing but its own element. Elements reuse the cached
+ * {@code /tokens} and {@code /totals} bodies. On a sharded server the users
+ * of each other node are fetched from it with one request per node.
+ */
+final class SquadReader {
+    private final TokenStore store;
+    private final ResponseCache.Resource tokenBodies;
+    private final ResponseCache.Resource totalsBodies;
+    private final ShardRouter router;
+    private final ExecutorService pool;
+
+    SquadReader(TokenStore store, ResponseCache.Resource tokenBodies, ResponseCache.Resource totalsBodies,
+                ShardRouter router, int threads) {
+        this.store = store;
+        this.tokenBodies = tokenBodies;
+        this.totalsBodies = totalsBodies;
+        this.router = router;
+        AtomicInteger n = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "squad-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Stream the array for {@code usernames}, one element per user: its
+     * {@code username}, {@code etag}, {@code tokens} and {@code totals}, or
+     * its {@code username} and an {@code error}.
+     */
+    void write(Context ctx, List<String> usernames) throws IOException, InterruptedException {
+        // each chunk is zero or more comma-separated elements
+        BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+        int expected = 0;
+        // a request forwarded by another node is answered from this node alone
+        boolean forwarded = router != null && router.isPeer(ctx);
+        Map<String, List<String>> remote = new TreeMap<>();
+        for (String username : usernames) {
+            String owner = router == null ? null : router.owner(username);
+            if (owner == null || owner.equals(router.self())) {
+                pool.execute(() -> chunks.add(element(username)));
+            } else if (forwarded) {
+                chunks.add(error(username, "not on this node"));
+            } else {
+                remote.computeIfAbsent(owner, o -> new ArrayList<>()).add(username);
+                continue;
+            }
+            expected++;
+        }
+        for (Map.Entry<String, List<String>> e : remote.entrySet()) {
+            List<String> users = e.getValue();
+            router.fetch(e.getKey(), "/squad?users=" + URLEncoder.encode(String.join(",", users), StandardCharsets.UTF_8), ctx)
+                    .handle((body, failure) -> failure == null ? elements(body, users) : errors(users, "node unavailable"))
+                    .thenAccept(chunks::add);
+            expected++;
+        }
+        ctx.contentType(ContentType.APPLICATION_JSON);
+        OutputStream out = ctx.outputStream();
+        out.write('[');
+        boolean first = true;
+        for (int i = 0; i < expected; i++) {
+            byte[] chunk = chunks.take();
+            if (chunk.length == 0) {
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write(chunk);
+            out.flush();
+        }
+        out.write(']');
+    }
+
+    private byte[] element(String username) {
+        try {
+            TokenStore.State state = store.existingState(username);
+            if (state == null) {
+                return error(username, "not found");
+            }
+            byte[] tokens = tokenBodies.bytes(username, state.version, () -> TokenServer.tokensJson(state.counts));
+            byte[] totals = totalsBodies.bytes(username, state.version, () -> TokenServer.totalsJson(state));
+            ByteArrayOutputStream out = new ByteArrayOutputStream(tokens.length + totals.length + 96);
+            out.write(ascii("{\"username\":"));
+            out.write(Json.MAPPER.writeValueAsBytes(username));
+            out.write(ascii(",\"etag\":"));
+            out.write(Json.MAPPER.writeValueAsBytes(ResponseCache.etag(state.version)));
+            out.write(ascii(",\"tokens\":"));
+            out.write(tokens);
+            out.write(ascii(",\"totals\":"));
+            out.write(totals);
+            out.write('}');
+            return out.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            return error(username, "unreadable");
+        }
+    }
+
+    /** The elements of another node's answer, without the enclosing brackets. */
+    private static byte[] elements(byte[] body, List<String> users) {
+        try {
+            JsonNode array = Json.MAPPER.readTree(body);
+            List<String> parts = new ArrayList<>();
+            for (JsonNode element : array) {
+                parts.add(Json.MAPPER.writeValueAsString(element));
+            }
+            return String.join(",", parts).getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return errors(users, "node unavailable");
+        }
+    }
+
+    private static byte[] errors(List<String> users, String message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String username : users) {
+            if (out.size() > 0) {
+                out.write(',');
+            }
+            out.writeBytes(error(username, message));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] error(String username, String message) {
+        Map<String, String> element = new LinkedHashMap<>();
+        element.put("username", username);
+        element.put("error", message);
+        try {
+            return Json.MAPPER.writeValueAsBytes(element);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
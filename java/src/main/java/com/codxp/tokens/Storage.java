@@ -0,0 +1,60 @@
+package com.codxp.tokens;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opens the configured {@link UserStorage} backend once per tokens file.
+ * {@code codxp.storage=json} (default) keeps one file per user under
+ * {@code data/users/}; {@code codxp.storage=mapped} uses the single-file
+ * {@link MappedUserStorage} at {@code data/users.db}.
+ */
+final class Storage {
+    private static final ConcurrentHashMap<String, UserStorage> OPEN = new ConcurrentHashMap<>();
+
+    private Storage() {
+    }
+
+    static UserStorage forTokensFile(String tokensFile) {
+        return OPEN.computeIfAbsent(tokensFile, Storage::open);
+    }
+
+    static Path dataDir(String tokensFile) {
+        Path base = Paths.get(tokensFile).getParent();
+        if (base == null) base = Paths.get(".");
+        return base.resolve("data");
+    }
+
+    private static UserStorage open(String tokensFile) {
+        String kind = System.getProperty("codxp.storage", "json");
+        return new MeteredUserStorage(kind, openBackend(tokensFile));
+    }
+
+    private static UserStorage openBackend(String tokensFile) {
+        String kind = System.getProperty("codxp.storage", "json");
+        switch (kind) {
+            case "json":
+                return new JsonUserStorage(tokensFile);
+            case "mapped":
+                try {
+                    Path dir = dataDir(tokensFile);
+                    UserStorage storage = new MappedUserStorage(dir.resolve("users.db"), dir.resolve("users.journal"));
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        try {
+                            storage.close();
+                        } catch (IOException e) {
+                            System.err.println("Closing user storage failed: " + e);
+                        }
+                    }));
+                    return storage;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown codxp.storage: " + kind);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.codxp.tokens;
+
+import java.io.IOException;
+import java.nio.file.*;
+
+/**
+ * One-shot migration of the per-user JSON files, plus the legacy
+ * {@code tokens.txt} as the {@code default} user, into the single-file
+ * {@link MappedUserStorage}. Users already present in the target are left
+ * untouched, so the migration can safely be re-run.
+ *
+ * <pre>mvn exec:java -Dexec.mainClass=com.codxp.tokens.StorageMigrator</pre>
+ */
+public class StorageMigrator {
+    public static void main(String[] args) throws IOException {
+        String tokensFile = UserService.resolveTokensFile();
+        Path dir = Storage.dataDir(tokensFile);
+        JsonUserStorage source = new JsonUserStorage(tokensFile);
+        int copied = 0;
+        int skipped = 0;
+        int failed = 0;
+        try (MappedUserStorage target = new MappedUserStorage(dir.resolve("users.db"), dir.resolve("users.journal"))) {
+            for (String username : source.usernames()) {
+                try {
+                    if (target.create(source.load(username))) {
+                        copied++;
+                    } else {
+                        skipped++;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failed++;
+                    System.err.println("Skipping " + username + ": " + e.getMessage());
+                }
+            }
+            if (target.load("default") == null && Files.exists(Paths.get(tokensFile))) {
+                UserRecord legacy = new UserRecord("default");
+                legacy.tokens = TokenLib.toCounts(TokenLib.readLegacyTokens(tokensFile));
+                target.create(legacy);
+                copied++;
+            }
+        }
+        System.out.println("Migrated " + copied + " users (" + skipped + " already present, " + failed + " failed) into "
+                + dir.resolve("users.db"));
+    }
+}
@@ -0,0 +1,207 @@
+package com.codxp.tokens;
+
+import io.javalin.http.sse.SseClient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes a user's token counts, totals and profile to their connected
+ * dashboards over Server-Sent Events whenever they change.
+ *
+ * <p>Updates are coalesced per connection: a change only marks the
+ * connection dirty, and a single send of the latest state is scheduled
+ * after a short delay. While a send to a slow client is still in flight,
+ * further changes keep folding into the next send, so each connection has
+ * at most one pending event no matter how fast counts change.
+ *
+ * <p>Sends are written on a fixed pool of writer threads, never on the
+ * scheduler, so a stalled client holds at most one writer and cannot delay
+ * the scheduling of anyone else's events. A connection whose send has not
+ * finished within the send timeout, queued time included, is closed and
+ * dropped, which frees its writer.
+ */
+final class TokenEvents implements TokenStore.Listener {
+    private static final int TOKENS = 1;
+    private static final int PROFILE = 2;
+
+    private final TokenStore store;
+    private final long coalesceMillis;
+    private final long sendTimeoutMillis;
+    private final ConcurrentHashMap<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ThreadPoolExecutor writers;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    TokenEvents(TokenStore store, long coalesceMillis, long sendTimeoutMillis, int writerThreads) {
+        this.store = store;
+        this.coalesceMillis = coalesceMillis;
+        this.sendTimeoutMillis = sendTimeoutMillis;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "sse-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        AtomicInteger n = new AtomicInteger();
+        // at most one send per connection is queued, so the queue is bounded by the connections
+        this.writers = new ThreadPoolExecutor(writerThreads, writerThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "sse-writer-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        writers.allowCoreThreadTimeOut(true);
+        store.addListener(this);
+    }
+
+    /** Keep the client open and send it the current state, then every change after that. */
+    void subscribe(String username, SseClient client) {
+        Subscriber s = new Subscriber(username, client);
+        subscribers.computeIfAbsent(username, u -> ConcurrentHashMap.newKeySet()).add(s);
+        client.onClose(() -> remove(s));
+        client.keepAlive();
+        s.mark(TOKENS | PROFILE);
+    }
+
+    private void remove(Subscriber s) {
+        subscribers.computeIfPresent(s.username, (u, set) -> {
+            set.remove(s);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    @Override
+    public void tokensChanged(String username, TokenStore.State before, TokenStore.State after) {
+        notify(username, TOKENS);
+    }
+
+    void profileChanged(String username) {
+        notify(username, PROFILE);
+    }
+
+    private void notify(String username, int what) {
+        Set<Subscriber> set = subscribers.get(username);
+        if (set != null) {
+            for (Subscriber s : set) {
+                s.mark(what);
+            }
+        }
+    }
+
+    int connectionCount() {
+        int n = 0;
+        for (Set<Subscriber> set : subscribers.values()) {
+            n += set.size();
+        }
+        return n;
+    }
+
+    /** Connections with a send scheduled or in flight. */
+    int queuedSends() {
+        return queued.get();
+    }
+
+    private final class Subscriber {
+        final String username;
+        final SseClient client;
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        /** Timeout of the send in flight, set before the send is queued and cancelled once it completes. */
+        volatile ScheduledFuture<?> inFlight;
+
+        Subscriber(String username, SseClient client) {
+            this.username = username;
+            this.client = client;
+        }
+
+        void mark(int what) {
+            pending.getAndAccumulate(what, (a, b) -> a | b);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                queued.incrementAndGet();
+                scheduler.schedule(this::start, coalesceMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Queue the send for a writer and close the connection if it does not
+         * finish in time. A send cancelled before it started never runs its
+         * own {@code finally}, so the timeout finishes it instead; whichever
+         * of the two gets there first does.
+         */
+        private void start() {
+            AtomicBoolean finished = new AtomicBoolean();
+            FutureTask<Void> write = new FutureTask<>(() -> send(finished), null);
+            inFlight = scheduler.schedule(() -> {
+                if (write.cancel(true)) {
+                    finish(finished);
+                    drop();
+                }
+            }, sendTimeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                writers.execute(write);
+            } catch (RejectedExecutionException e) {
+                inFlight.cancel(false);
+                finish(finished);
+                drop();
+            }
+        }
+
+        /** Let the connection schedule its next send; false if the send was already finished. */
+        private boolean finish(AtomicBoolean finished) {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            scheduled.set(false);
+            queued.decrementAndGet();
+            return true;
+        }
+
+        private void send(AtomicBoolean finished) {
+            int what = pending.getAndSet(0);
+            boolean sent = false;
+            boolean mine;
+            try {
+                if (client.terminated()) {
+                    remove(this);
+                    return;
+                }
+                if ((what & TOKENS) != 0) {
+                    TokenStore.State state = store.state(username);
+                    Map<String, Object> event = new LinkedHashMap<>();
+                    event.put("version", state.version);
+                    event.put("etag", ResponseCache.etag(state.version));
+                    event.put("tokens", TokenServer.tokensJson(state.counts));
+                    event.put("totals", TokenServer.totalsJson(state));
+                    client.sendEvent("tokens", event);
+                }
+                if ((what & PROFILE) != 0) {
+                    client.sendEvent("profile", UserService.getProfile(username));
+                }
+                sent = true;
+            } catch (Exception e) {
+                drop();
+            } finally {
+                inFlight.cancel(false);
+                mine = finish(finished);
+            }
+            // unless the timeout finished it first and dropped the connection
+            if (mine && sent && pending.get() != 0) {
+                schedule();
+            }
+        }
+
+        private void drop() {
+            remove(this);
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.codxp.tokens;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-user append-only log of every token change. Each change to one
+ * counter is a fixed 16-byte record (timestamp millis, category, bucket,
+ * delta) in {@code data/history/<user>.log}, written in time order, so any
+ * time range can be located by binary search instead of a scan.
+ *
+ * <p>Per-day totals are kept in memory and periodically written to
+ * {@code <user>.snap} together with the number of log records they cover;
+ * loading a user reads the snapshot and replays only the log tail after it.
+ * At most {@code codxp.historyOpenLogs} users are kept loaded; the least
+ * recently used are snapshotted and closed when more are opened.
+ */
+final class TokenHistory implements TokenStore.Listener, AutoCloseable {
+    static final int RECORD_SIZE = 16;
+    private static final int SNAPSHOT_MAGIC = 0x43584853;
+    private static final int SNAPSHOT_EVERY = 4096;
+    private static final long DAY_MILLIS = 86_400_000L;
+    private static final long HOUR_MILLIS = 3_600_000L;
+    /** Aggregate slots per period: minutes added and minutes used, per category. */
+    private static final int SLOTS = TokenCategory.values().length * 2;
+
+    private static final int MAX_OPEN = Math.max(1, Integer.getInteger("codxp.historyOpenLogs", 1000));
+
+    private final Path dir;
+    private final ConcurrentHashMap<String, UserLog> logs = new ConcurrentHashMap<>();
+    /** Logical clock stamped on a log at each use, to find the least recently used. */
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicBoolean trimming = new AtomicBoolean();
+
+    TokenHistory(Path dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public void tokensChanged(String username, TokenStore.State before, TokenStore.State after) {
+        try {
+            long now = System.currentTimeMillis();
+            while (true) {
+                UserLog log = log(username, true);
+                synchronized (log) {
+                    if (log.closed) {
+                        logs.remove(username, log);
+                        continue;
+                    }
+                    record(log, before, after, now);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Recording history for " + username + " failed: " + e);
+        }
+    }
+
+    private static void record(UserLog log, TokenStore.State before, TokenStore.State after, long now) throws IOException {
+        for (int cell = 0; cell < after.counts.length; cell++) {
+            int delta = after.counts[cell] - before.counts[cell];
+            if (delta != 0) {
+                log.append(now, cell, delta);
+            }
+        }
+    }
+
+    /**
+     * Minutes added and used per category in each hour, or each day if
+     * {@code daily}, between {@code from} (inclusive) and {@code to}
+     * (exclusive). Day buckets are served from the per-day totals and cover
+     * whole UTC days; hour buckets read only the matching slice of the log.
+     * A user with no history yet has an empty result and no files created.
+     */
+    SortedMap<Long, long[]> query(String username, long from, long to, boolean daily) throws IOException {
+        while (true) {
+            UserLog log = log(username, false);
+            if (log == null) {
+                return new TreeMap<>();
+            }
+            synchronized (log) {
+                if (log.closed) {
+                    logs.remove(username, log);
+                    continue;
+                }
+                if (daily) {
+                    SortedMap<Long, long[]> out = new TreeMap<>();
+                    long toDay = Math.floorDiv(to - 1, DAY_MILLIS);
+                    log.daily.subMap(Math.floorDiv(from, DAY_MILLIS), true, toDay, true)
+                            .forEach((day, slots) -> out.put(day * DAY_MILLIS, slots.clone()));
+                    return out;
+                }
+                return log.scan(from, to, HOUR_MILLIS);
+            }
+        }
+    }
+
+    /** The loaded log of a user, loading it if needed; null if it has none and {@code create} is false. */
+    private UserLog log(String username, boolean create) throws IOException {
+        UserLog log;
+        try {
+            log = logs.computeIfAbsent(username, u -> {
+                Path logPath = dir.resolve(u + ".log");
+                if (!create && !Files.exists(logPath)) {
+                    return null;
+                }
+                try {
+                    return new UserLog(logPath, dir.resolve(u + ".snap"));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (log != null) {
+            log.used = clock.incrementAndGet();
+            if (logs.size() > MAX_OPEN) {
+                trim();
+            }
+        }
+        return log;
+    }
+
+    /** Snapshot and close the least recently used logs, down to seven eighths of the limit. */
+    private void trim() {
+        if (!trimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<UserLog> open = new ArrayList<>(logs.values());
+            open.sort(Comparator.comparingLong(l -> l.used));
+            int excess = open.size() - MAX_OPEN + Math.max(1, MAX_OPEN / 8);
+            for (int i = 0; i < excess && i < open.size(); i++) {
+                UserLog log = open.get(i);
+                try {
+                    synchronized (log) {
+                        log.close();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Closing history log " + log.snapPath + " failed: " + e);
+                }
+                logs.values().remove(log);
+            }
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (UserLog log : logs.values()) {
+            synchronized (log) {
+                log.close();
+            }
+        }
+    }
+
+    /** Add a change of {@code delta} tokens in {@code cell} to an aggregate array, in minutes. */
+    private static void accumulate(long[] slots, int cell, int delta) {
+        int n = TokenLib.MINUTE_BUCKETS.length;
+        long minutes = (long) delta * TokenLib.MINUTE_BUCKETS[cell % n];
+        int category = cell / n;
+        if (minutes > 0) {
+            slots[category * 2] += minutes;
+        } else {
+            slots[category * 2 + 1] -= minutes;
+        }
+    }
+
+    /** JSON form of an aggregate array: minutes added and used per category. */
+    static Map<String, Object> slotsJson(long[] slots) {
+        Map<String, Object> out = new LinkedHashMap<>();
+        for (TokenCategory cat : TokenCategory.values()) {
+            Map<String, Long> stats = new LinkedHashMap<>();
+            stats.put("added", slots[cat.ordinal() * 2]);
+            stats.put("used", slots[cat.ordinal() * 2 + 1]);
+            out.put(cat.key(), stats);
+        }
+        return out;
+    }
+
+    private static final class UserLog {
+        final Path snapPath;
+        final FileChannel channel;
+        final TreeMap<Long, long[]> daily = new TreeMap<>();
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        long count;
+        long lastTimestamp;
+        long snapshotCount;
+        volatile long used;
+        /** Set once the channel is closed; a caller holding a closed log loads it again. */
+        boolean closed;
+
+        UserLog(Path logPath, Path snapPath) throws IOException {
+            Files.createDirectories(logPath.toAbsolutePath().getParent());
+            this.snapPath = snapPath;
+            this.channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            count = channel.size() / RECORD_SIZE;
+            channel.truncate(count * RECORD_SIZE); // drop a torn trailing record
+            readSnapshot();
+            replay(snapshotCount);
+            if (count - snapshotCount >= SNAPSHOT_EVERY) {
+                writeSnapshot();
+            }
+        }
+
+        void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeSnapshot();
+            } finally {
+                channel.close();
+            }
+        }
+
+        void append(long timestamp, int cell, int delta) throws IOException {
+            // keep the log sorted even if the wall clock steps back
+            timestamp = Math.max(timestamp, lastTimestamp);
+            record.clear();
+            record.putLong(timestamp).put((byte) (cell / TokenLib.MINUTE_BUCKETS.length))
+                    .put((byte) (cell % TokenLib.MINUTE_BUCKETS.length)).putShort((short) 0).putInt(delta).flip();
+            long pos = count * RECORD_SIZE;
+            while (record.hasRemaining()) {
+                pos += channel.write(record, pos);
+            }
+            count++;
+            lastTimestamp = timestamp;
+            accumulate(daily.computeIfAbsent(Math.floorDiv(timestamp, DAY_MILLIS), d -> new long[SLOTS]), cell, delta);
+            if (count - snapshotCount >= SNAPSHOT_EVERY) {
+                writeSnapshot();
+            }
+        }
+
+        private long timestampAt(long index) throws IOException {
+            ByteBuffer ts = ByteBuffer.allocate(8);
+            channel.read(ts, index * RECORD_SIZE);
+            return ts.getLong(0);
+        }
+
+        /** Index of the first record at or after {@code timestamp}. */
+        private long lowerBound(long timestamp) throws IOException {
+            long lo = 0;
+            long hi = count;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (timestampAt(mid) < timestamp) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /** Visit records from index {@code start} until {@code to}, reading the log in large chunks. */
+        private void forEach(long start, long to, RecordVisitor visitor) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * 4096);
+            long index = start;
+            while (index < count) {
+                buf.clear();
+                long want = Math.min(buf.capacity(), (count - index) * RECORD_SIZE);
+                buf.limit((int) want);
+                long pos = index * RECORD_SIZE;
+                while (buf.hasRemaining()) {
+                    int read = channel.read(buf, pos + buf.position());
+                    if (read < 0) break;
+                }
+                buf.flip();
+                while (buf.remaining() >= RECORD_SIZE) {
+                    long ts = buf.getLong();
+                    int category = buf.get();
+                    int bucket = buf.get();
+                    buf.getShort();
+                    int delta = buf.getInt();
+                    if (ts >= to) {
+                        return;
+                    }
+                    visitor.visit(ts, category * TokenLib.MINUTE_BUCKETS.length + bucket, delta);
+                    index++;
+                }
+            }
+        }
+
+        SortedMap<Long, long[]> scan(long from, long to, long bucketMillis) throws IOException {
+            SortedMap<Long, long[]> out = new TreeMap<>();
+            forEach(lowerBound(from), to, (ts, cell, delta) ->
+                    accumulate(out.computeIfAbsent(Math.floorDiv(ts, bucketMillis) * bucketMillis, b -> new long[SLOTS]), cell, delta));
+            return out;
+        }
+
+        private void replay(long start) throws IOException {
+            forEach(start, Long.MAX_VALUE, (ts, cell, delta) -> {
+                accumulate(daily.computeIfAbsent(Math.floorDiv(ts, DAY_MILLIS), d -> new long[SLOTS]), cell, delta);
+                lastTimestamp = ts;
+            });
+        }
+
+        private void readSnapshot() throws IOException {
+            if (!Files.exists(snapPath)) {
+                return;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapPath)))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    return;
+                }
+                long covered = in.readLong();
+                long last = in.readLong();
+                int days = in.readInt();
+                TreeMap<Long, long[]> loaded = new TreeMap<>();
+                for (int i = 0; i < days; i++) {
+                    long day = in.readLong();
+                    long[] slots = new long[SLOTS];
+                    for (int s = 0; s < SLOTS; s++) {
+                        slots[s] = in.readLong();
+                    }
+                    loaded.put(day, slots);
+                }
+                if (covered <= count) {
+                    daily.putAll(loaded);
+                    snapshotCount = covered;
+                    lastTimestamp = last;
+                }
+            } catch (EOFException e) {
+                // incomplete snapshot: rebuild everything from the log
+            }
+        }
+
+        void writeSnapshot() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(count);
+                out.writeLong(lastTimestamp);
+                out.writeInt(daily.size());
+                for (Map.Entry<Long, long[]> e : daily.entrySet()) {
+                    out.writeLong(e.getKey());
+                    for (long v : e.getValue()) {
+                        out.writeLong(v);
+                    }
+                }
+            }
+            channel.force(false); // the snapshot must never cover records that are not on disk
+            UserFiles.writeAtomically(snapPath, bytes.toByteArray());
+            snapshotCount = count;
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(long timestamp, int cell, int delta) throws IOException;
+    }
+}
@@ -4,17 +4,24 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
-
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 
 public class TokenLib {
     public static final int[] MINUTE_BUCKETS = {15, 30, 45, 60};
+    private static final Metrics.Counter LEGACY_READ_BYTES = Metrics.counter("codxp_storage_read_bytes_total",
+            "Bytes read from storage files.", "backend=\"legacy\"");
+    private static final Metrics.Counter LEGACY_WRITTEN_BYTES = Metrics.counter("codxp_storage_written_bytes_total",
+            "Bytes written to storage files.", "backend=\"legacy\"");
 
-    private static Path userFile(String filename, String username) {
-        Path base = Paths.get(filename).getParent();
-        if (base == null) base = Paths.get(".");
-        return base.resolve("data").resolve("users").resolve(username + ".json");
+    /** Index of the given minute value in {@link #MINUTE_BUCKETS}, or -1 if it is not a bucket. */
+    public static int bucketIndex(int minutes) {
+        for (int i = 0; i < MINUTE_BUCKETS.length; i++) {
+            if (MINUTE_BUCKETS[i] == minutes) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     static void ensureFile(String filename) throws IOException {
@@ -37,9 +44,11 @@ public class TokenLib {
         return out;
     }
 
-    private static Map<TokenCategory, List<Integer>> readLegacyTokens(String filename) throws IOException {
+    static Map<TokenCategory, List<Integer>> readLegacyTokens(String filename) throws IOException {
         ensureFile(filename);
-        List<String> raw = Files.readAllLines(Paths.get(filename), StandardCharsets.UTF_8);
+        byte[] bytes = Files.readAllBytes(Paths.get(filename));
+        LEGACY_READ_BYTES.add(bytes.length);
+        List<String> raw = new String(bytes, StandardCharsets.UTF_8).lines().collect(Collectors.toList());
         Map<TokenCategory, List<Integer>> data = new EnumMap<>(TokenCategory.class);
         if (raw.size() >= 12) {
             data.put(TokenCategory.REGULAR, parseInts(raw.subList(0, 4), 4));
@@ -69,53 +78,73 @@ public class TokenLib {
                 out.add(String.valueOf(v));
             }
         }
-        Files.write(Paths.get(filename), out, StandardCharsets.UTF_8);
+        String text = String.join(System.lineSeparator(), out) + System.lineSeparator();
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        UserFiles.writeAtomically(Paths.get(filename), bytes);
+        LEGACY_WRITTEN_BYTES.add(bytes.length);
     }
 
     public static Map<TokenCategory, List<Integer>> readAllTokens(String filename, String username) throws IOException {
-        Path userPath = userFile(filename, username);
-        if (Files.exists(userPath)) {
-            ObjectMapper mapper = new ObjectMapper();
-            try (InputStream in = Files.newInputStream(userPath)) {
-                Map<String, Object> obj = mapper.readValue(in, new TypeReference<>() {});
-                Map<String, List<Integer>> tokens = (Map<String, List<Integer>>) obj.getOrDefault("tokens", Collections.emptyMap());
-                Map<TokenCategory, List<Integer>> data = new EnumMap<>(TokenCategory.class);
-                for (TokenCategory cat : TokenCategory.values()) {
-                    List<Integer> vals = tokens.getOrDefault(cat.key(), Arrays.asList(0, 0, 0, 0));
-                    data.put(cat, ensureSize4(vals));
-                }
-                return data;
-            }
-        }
-        return readLegacyTokens(filename);
+        return fromCounts(readCounts(filename, username));
     }
 
     public static void writeAllTokens(String filename, String username, Map<TokenCategory, List<Integer>> data) throws IOException {
-        Path userPath = userFile(filename, username);
-        if ("default".equals(username) && !Files.exists(userPath)) {
-            writeLegacyTokens(filename, data);
-            return;
+        writeCounts(filename, username, toCounts(data));
+    }
+
+    /** Primitive form of {@link #readAllTokens}: counts laid out as in {@link UserRecord#tokens}. */
+    static int[] readCounts(String filename, String username) throws IOException {
+        UserRecord record = Storage.forTokensFile(filename).load(username);
+        if (record != null) {
+            return record.tokens;
         }
-        Files.createDirectories(userPath.getParent());
-        ObjectMapper mapper = new ObjectMapper();
-        String hash = "";
-        if (Files.exists(userPath)) {
-            try (InputStream in = Files.newInputStream(userPath)) {
-                Map<String, Object> obj = mapper.readValue(in, new TypeReference<>() {});
-                Object ph = obj.get("password_hash");
-                if (ph instanceof String) hash = (String) ph;
+        return toCounts(readLegacyTokens(filename));
+    }
+
+    /** Primitive form of {@link #writeAllTokens}; keeps the user's password hash and profile. */
+    static void writeCounts(String filename, String username, int[] counts) throws IOException {
+        UserStorage storage = Storage.forTokensFile(filename);
+        if ("default".equals(username)) {
+            ReentrantLock lock = UserFiles.lockFor(username);
+            lock.lock();
+            try {
+                if (storage.load(username) == null) {
+                    writeLegacyTokens(filename, fromCounts(counts));
+                    return;
+                }
+            } finally {
+                lock.unlock();
             }
         }
-        Map<String, Object> out = new LinkedHashMap<>();
-        out.put("password_hash", hash);
-        Map<String, List<Integer>> tokens = new LinkedHashMap<>();
+        int[] copy = counts.clone();
+        storage.update(username, r -> r.tokens = copy);
+    }
+
+    static int[] toCounts(Map<TokenCategory, List<Integer>> data) {
+        int n = MINUTE_BUCKETS.length;
+        int[] counts = new int[UserRecord.CELLS];
         for (TokenCategory cat : TokenCategory.values()) {
-            tokens.put(cat.key(), ensureSize4(data.getOrDefault(cat, Arrays.asList(0, 0, 0, 0))));
+            List<Integer> vals = data.get(cat);
+            if (vals == null) continue;
+            for (int i = 0; i < Math.min(n, vals.size()); i++) {
+                Integer v = vals.get(i);
+                counts[cat.ordinal() * n + i] = v == null ? 0 : v;
+            }
         }
-        out.put("tokens", tokens);
-        try (OutputStream os = Files.newOutputStream(userPath)) {
-            mapper.writerWithDefaultPrettyPrinter().writeValue(os, out);
+        return counts;
+    }
+
+    static Map<TokenCategory, List<Integer>> fromCounts(int[] counts) {
+        int n = MINUTE_BUCKETS.length;
+        Map<TokenCategory, List<Integer>> data = new EnumMap<>(TokenCategory.class);
+        for (TokenCategory cat : TokenCategory.values()) {
+            List<Integer> vals = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                vals.add(counts[cat.ordinal() * n + i]);
+            }
+            data.put(cat, vals);
         }
+        return data;
     }
 
     public static AbstractMap.SimpleEntry<Integer, Double> computeTotals(List<Integer> tokens) {
@@ -129,6 +158,70 @@ public class TokenLib {
         return new AbstractMap.SimpleEntry<>(total, hours);
     }
 
+    /**
+     * Total minutes for the {@link #MINUTE_BUCKETS} counts stored in {@code counts}
+     * starting at {@code offset}. Primitive, allocation-free counterpart of
+     * {@link #computeTotals(List)}.
+     */
+    public static int computeTotalMinutes(int[] counts, int offset) {
+        int total = 0;
+        for (int i = 0; i < MINUTE_BUCKETS.length; i++) {
+            total += counts[offset + i] * MINUTE_BUCKETS[i];
+        }
+        return total;
+    }
+
+    /** What a burn plan optimizes once the target is covered. */
+    public enum PlanObjective {
+        /** Cover the target with as few tokens as possible, then with the least overshoot. */
+        FEWEST_TOKENS,
+        /** Overshoot the target as little as possible, then use as few tokens as possible. */
+        LEAST_WASTE
+    }
+
+    /** Tokens to burn for a target session length, per {@link #MINUTE_BUCKETS}. */
+    public static final class Plan {
+        public final int targetMinutes;
+        /** Tokens to use per bucket. */
+        public final int[] use;
+        public final int tokens;
+        public final int minutes;
+        /** False when even all tokens fall short of the target; {@link #use} is then all of them. */
+        public final boolean covered;
+
+        Plan(int targetMinutes, int[] use, int tokens, int minutes, boolean covered) {
+            this.targetMinutes = targetMinutes;
+            this.use = use;
+            this.tokens = tokens;
+            this.minutes = minutes;
+            this.covered = covered;
+        }
+
+        public int wasteMinutes() {
+            return Math.max(0, minutes - targetMinutes);
+        }
+    }
+
+    private static final BurnPlanner PLANNER = new BurnPlanner(MINUTE_BUCKETS);
+
+    /**
+     * Which of the tokens in {@code counts} (one count per {@link #MINUTE_BUCKETS}
+     * entry) to burn for at least {@code targetMinutes} of double XP. Solved
+     * exactly with tables that are kept per inventory, so repeated queries
+     * against the same counts take microseconds.
+     */
+    public static Plan plan(int[] counts, int targetMinutes, PlanObjective objective) {
+        return PLANNER.plan(counts, targetMinutes, objective);
+    }
+
+    /** {@link #plan(int[], int, PlanObjective)} for one category of a user's tokens. */
+    public static Plan plan(Map<TokenCategory, List<Integer>> data, TokenCategory category, int targetMinutes,
+                            PlanObjective objective) {
+        int n = MINUTE_BUCKETS.length;
+        int offset = category.ordinal() * n;
+        return plan(Arrays.copyOfRange(toCounts(data), offset, offset + n), targetMinutes, objective);
+    }
+
     public static String buildTotalsReport(Map<TokenCategory, List<Integer>> data) {
         List<String> lines = new ArrayList<>();
         lines.add("=== 2XP Totals Report ===");
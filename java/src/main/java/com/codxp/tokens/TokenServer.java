@@ -1,30 +1,368 @@
 package com.codxp.tokens;
 
 import io.javalin.Javalin;
+import io.javalin.compression.CompressionStrategy;
+import io.javalin.compression.Gzip;
+import io.javalin.http.HandlerType;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.Context;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.javalin.http.ServiceUnavailableResponse;
+import io.javalin.http.TooManyRequestsResponse;
+import io.javalin.json.JavalinJackson;
+import io.javalin.util.ConcurrencyUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.time.*;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
 
 public class TokenServer {
     private static String requireUser(Context ctx) {
         String auth = ctx.header("Authorization");
         if (auth == null || !auth.startsWith("Bearer ")) {
-            return null;
+            // EventSource cannot send headers, so the event stream may pass the token in the URL
+            String token = "/events".equals(ctx.path()) ? ctx.queryParam("access_token") : null;
+            return token == null ? null : UserService.verifyToken(token);
         }
         String token = auth.substring(7);
         return UserService.verifyToken(token);
     }
 
+    /** Body of a successful login: a short-lived access token and the refresh token that renews it. */
+    private static Map<String, String> tokenPair(String username) {
+        try {
+            return Map.of("token", UserService.issueToken(username),
+                    "refresh_token", UserService.issueRefreshToken(username));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** True for admins; otherwise answers 403 (or leaves the 401 from the auth filter) and returns false. */
+    private static boolean requireAdmin(Context ctx) {
+        String username = ctx.attribute("username");
+        if (username == null) {
+            return false;
+        }
+        if (!UserService.isAdmin(username)) {
+            ctx.status(HttpStatus.FORBIDDEN).result("Admin only");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Board selected by {@code ?category=} (a category key or {@code grand},
+     * the default). Answers the request and returns -1 when the caller is not
+     * authenticated, the category is unknown or the boards are still loading.
+     */
+    private static int leaderboardBoard(Context ctx, Leaderboard leaderboard) {
+        if (ctx.attribute("username") == null) {
+            return -1;
+        }
+        int board = Leaderboard.board(ctx.queryParam("category"));
+        if (board < 0) {
+            ctx.status(HttpStatus.BAD_REQUEST).result("Unknown category");
+            return -1;
+        }
+        if (!leaderboard.ready()) {
+            ctx.header("Retry-After", "1");
+            ctx.status(HttpStatus.SERVICE_UNAVAILABLE).result("Leaderboard is still loading");
+            return -1;
+        }
+        return board;
+    }
+
+    /** Take a token from {@code limit} for {@code key}, or answer 429 with the seconds until one is free. */
+    private static void enforce(Context ctx, RateLimiter limit, String key) {
+        if (limit == null) {
+            return;
+        }
+        long waitNanos = limit.acquire(key);
+        if (waitNanos > 0) {
+            ctx.header("Retry-After", String.valueOf(Math.max(1, (waitNanos + 999_999_999L) / 1_000_000_000L)));
+            throw new TooManyRequestsResponse("Rate limit " + limit.name() + " exceeded");
+        }
+    }
+
+    private interface BodyBytes {
+        ResponseCache.Encoded get(BodyFormat format, boolean gzip) throws IOException;
+    }
+
+    /**
+     * Answer with the body for {@code version} and its ETag, or with 304 when
+     * the client already holds that version; the body is then never built.
+     * The body is in the format the client's {@code Accept} prefers, and
+     * gzipped if it is large and {@code Accept-Encoding} allows.
+     */
+    private static void sendVersioned(Context ctx, long version, BodyBytes body) throws IOException {
+        String etag = ResponseCache.etag(version);
+        ctx.header("ETag", etag);
+        ctx.header("Cache-Control", "private, no-cache");
+        ctx.res().addHeader("Vary", "Accept, Accept-Encoding");
+        if (ResponseCache.matches(ctx.header("If-None-Match"), etag)) {
+            ctx.status(HttpStatus.NOT_MODIFIED);
+            return;
+        }
+        BodyFormat format = BodyFormat.negotiate(ctx.header("Accept"));
+        ResponseCache.Encoded encoded = body.get(format, ResponseCache.acceptsGzip(ctx.header("Accept-Encoding")));
+        if (encoded.gzipped) {
+            ctx.header("Content-Encoding", "gzip"); // already compressed; Javalin leaves it alone
+        }
+        ctx.contentType(format.contentType).result(encoded.bytes);
+    }
+
+    static Map<String, int[]> tokensJson(int[] counts) {
+        int n = TokenLib.MINUTE_BUCKETS.length;
+        Map<String, int[]> out = new LinkedHashMap<>();
+        for (TokenCategory cat : TokenCategory.values()) {
+            out.put(cat.key(), Arrays.copyOfRange(counts, cat.ordinal() * n, cat.ordinal() * n + n));
+        }
+        return out;
+    }
+
+    static Map<String, Object> totalsJson(TokenStore.State state) {
+        Map<String, Object> out = new LinkedHashMap<>();
+        for (TokenCategory cat : TokenCategory.values()) {
+            int minutes = state.minutes[cat.ordinal()];
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("minutes", minutes);
+            stats.put("hours", minutes / 60.0);
+            out.put(cat.key(), stats);
+        }
+        Map<String, Object> grandStats = new LinkedHashMap<>();
+        grandStats.put("minutes", state.grandMinutes);
+        grandStats.put("hours", state.grandMinutes / 60.0);
+        out.put("grand", grandStats);
+        return out;
+    }
+
+    private static final int MAX_PLAN_TARGETS = 100;
+    /** A week of double XP; far beyond any real inventory, and bounds the planner's tables. */
+    private static final int MAX_PLAN_MINUTES = 7 * 24 * 60;
+
+    static Map<String, Object> planJson(TokenLib.Plan plan) {
+        Map<String, Object> use = new LinkedHashMap<>();
+        for (int i = 0; i < TokenLib.MINUTE_BUCKETS.length; i++) {
+            use.put(Integer.toString(TokenLib.MINUTE_BUCKETS[i]), plan.use[i]);
+        }
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("target_minutes", plan.targetMinutes);
+        out.put("covered", plan.covered);
+        out.put("use", use);
+        out.put("tokens", plan.tokens);
+        out.put("minutes", plan.minutes);
+        out.put("waste_minutes", plan.wasteMinutes());
+        return out;
+    }
+
+    private static TokenCategory parseCategory(String key) {
+        for (TokenCategory cat : TokenCategory.values()) {
+            if (cat.key().equalsIgnoreCase(key)) {
+                return cat;
+            }
+        }
+        return null;
+    }
+
+    /** Parse an ISO date (start of that UTC day), ISO instant or epoch millis. */
+    private static long parseTime(String value, long fallback) {
+        if (value == null || value.isEmpty()) {
+            return fallback;
+        }
+        if (value.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(value);
+        }
+        if (value.length() == 10) {
+            return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        }
+        return Instant.parse(value).toEpochMilli();
+    }
+
     public static void main(String[] args) {
-        ObjectMapper mapper = new ObjectMapper();
+        long flushInterval = Long.getLong("codxp.flushIntervalMs", 1000);
+        TokenStore store = new TokenStore(UserService.getTokensFile(), flushInterval);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                store.close();
+            } catch (Exception e) {
+                System.err.println("Final token flush failed: " + e);
+            }
+        }));
+        create(store).start(Integer.getInteger("codxp.port", 7001));
+    }
+
+    private static void registerGauges(TokenEvents events, Bulkhead... limits) {
+        Metrics.gauge("codxp_bcrypt_queue_depth", "Password hashing tasks waiting for a worker.", "", HashingPool::queueDepth);
+        Metrics.gauge("codxp_bcrypt_active", "Password hashing workers currently busy.", "", HashingPool::activeCount);
+        Metrics.gauge("codxp_sse_connections", "Open /events streams.", "", events::connectionCount);
+        Metrics.gauge("codxp_sse_queued_sends", "/events connections with a coalesced send scheduled or in flight.", "", events::queuedSends);
+        for (Bulkhead limit : limits) {
+            Metrics.gauge("codxp_in_flight_requests", "Requests holding a concurrency permit, or -1 if unlimited.",
+                    "class=" + Metrics.quote(limit.name()), limit::inFlight);
+        }
+    }
+
+    /**
+     * Pick up edits the CLIs make to the JSON user files and tokens file:
+     * tokens through the store (or straight into the leaderboard when the
+     * user is not loaded), profiles by moving their version on. Null when
+     * disabled or when the storage backend is not the shared JSON files.
+     */
+    private static UserFileWatcher watchUserFiles(TokenStore store, ResponseCache responses, TokenEvents events,
+                                                  Leaderboard leaderboard, ShardRouter router) {
+        if (!"json".equals(System.getProperty("codxp.storage", "json"))
+                || !Boolean.parseBoolean(System.getProperty("codxp.watch", "true"))) {
+            return null;
+        }
+        try {
+            return new UserFileWatcher(UserService.getTokensFile(), Long.getLong("codxp.watchDebounceMs", 200), (username, record) -> {
+                if (router != null && !router.owns(username)) {
+                    return;
+                }
+                if (record == null) {
+                    store.evict(username);
+                    leaderboard.remove(username, store.version(username));
+                } else if (!store.external(username, record.tokens)) {
+                    leaderboard.set(username, store.version(username), record.tokens);
+                }
+                responses.profileChanged(username);
+                events.profileChanged(username);
+            });
+        } catch (IOException e) {
+            System.err.println("Watching user files failed, external edits will not be picked up: " + e);
+            return null;
+        }
+    }
+
+    /** Build the application with all routes registered, without starting it. */
+    static Javalin create(TokenStore store) {
+        boolean virtualThreads = Boolean.getBoolean("codxp.virtualThreads");
+        // Javalin picks virtual threads by itself whenever the JVM has them; keep that opt-in
+        ConcurrencyUtil.INSTANCE.setUseLoom(virtualThreads);
+        if (virtualThreads && !ConcurrencyUtil.isLoomAvailable()) {
+            System.err.println("codxp.virtualThreads requested but this JVM has no virtual threads; using platform threads");
+        }
+        Bulkhead authLimit = Bulkhead.fromConfig("auth");
+        Bulkhead readLimit = Bulkhead.fromConfig("read");
+        Bulkhead writeLimit = Bulkhead.fromConfig("write");
+        TokenEvents events = new TokenEvents(store, Long.getLong("codxp.sseCoalesceMs", 250),
+                Long.getLong("codxp.sseSendTimeoutMs", 5000), Integer.getInteger("codxp.sseWriters", 16));
+        TokenHistory history = new TokenHistory(Storage.dataDir(UserService.getTokensFile()).resolve("history"));
+        store.addListener(history);
+        ResponseCache responses = new ResponseCache();
+        ResponseCache.Resource tokenBodies = responses.resource();
+        ResponseCache.Resource totalsBodies = responses.resource();
+        ResponseCache.Resource profileBodies = responses.resource();
+        Leaderboard leaderboard = new Leaderboard();
+        store.addListener(leaderboard);
+        ShardRouter router = ShardRouter.fromConfig();
+        Groups groups = Groups.fromConfig(UserService.getTokensFile());
+        SquadReader squad = new SquadReader(store, tokenBodies, totalsBodies, router,
+                Integer.getInteger("codxp.squad.threads", 2 * Runtime.getRuntime().availableProcessors()));
+        int squadMaxUsers = Integer.getInteger("codxp.squad.maxUsers", 50);
+        // a sharded node also holds inert copies of users it has handed to other nodes
+        Predicate<String> owned = username -> router == null || router.owns(username);
+        BootWarmup warmup;
+        if (Boolean.getBoolean("codxp.warmup")) {
+            int threads = Integer.getInteger("codxp.warmupThreads", 2 * Runtime.getRuntime().availableProcessors());
+            warmup = BootWarmup.start(UserService.storage(), store, leaderboard, owned, threads);
+        } else {
+            leaderboard.seed(UserService.storage(), owned);
+            warmup = BootWarmup.skipped();
+        }
+        UserFileWatcher watcher = watchUserFiles(store, responses, events, leaderboard, router);
+        LoadShedder shedder = LoadShedder.fromConfig();
+        RateLimiter ipRate = RateLimiter.fromConfig("ip");
+        RateLimiter authRate = RateLimiter.fromConfig("auth");
+        RateLimiter readRate = RateLimiter.fromConfig("read");
+        RateLimiter writeRate = RateLimiter.fromConfig("write");
+        registerGauges(events, authLimit, readLimit, writeLimit);
+        for (RateLimiter limit : new RateLimiter[] {ipRate, authRate, readRate, writeRate}) {
+            if (limit != null) {
+                Metrics.gauge("codxp_rate_buckets", "Rate-limit buckets held in memory.",
+                        "limit=" + Metrics.quote(limit.name()), limit::size);
+            }
+        }
         Javalin app = Javalin.create(config -> {
-            config.plugins.enableCors(cors -> cors.add(it -> it.anyHost()));
+            config.plugins.enableCors(cors -> cors.add(it -> {
+                it.anyHost();
+                it.exposeHeader("ETag");
+            }));
+            config.jsonMapper(new JavalinJackson(Json.MAPPER));
+            // bodies built per request, such as /leaderboard and /squad; cached bodies come precompressed
+            CompressionStrategy compression = new CompressionStrategy(null, new Gzip(ResponseCache.GZIP_LEVEL));
+            compression.setMinSizeForCompression(ResponseCache.GZIP_MIN_BYTES);
+            config.compression.custom(compression);
+        });
+
+        app.before(ctx -> ctx.attribute("startNanos", System.nanoTime()));
+
+        app.after(ctx -> {
+            Long start = ctx.attribute("startNanos");
+            if (start == null || "/events".equals(ctx.path())) {
+                return;
+            }
+            // label by route template, never by raw path, to keep the series count bounded
+            String route = ctx.endpointHandlerPath();
+            String labels = "method=" + Metrics.quote(ctx.method().name())
+                    + ",route=" + Metrics.quote(route.startsWith("/") ? route : "unmatched")
+                    + ",status=\"" + ctx.statusCode() + '"';
+            long nanos = System.nanoTime() - start;
+            Metrics.histogram("codxp_http_request_seconds", "HTTP request latency by route and status.", labels)
+                    .observe(nanos);
+            if (shedder != null && ctx.statusCode() != 429 && ctx.statusCode() != 503) {
+                shedder.completed(nanos); // requests turned away early would drag the mean down
+            }
+        });
+
+        Set<String> authPaths = Set.of("/login", "/register");
+        Set<String> openPaths = Set.of("/login", "/register", "/refresh", "/metrics", "/ready");
+        // long-lived streams and monitoring probes, not units of work
+        Set<String> unmeteredPaths = Set.of("/events", "/metrics", "/ready");
+        app.before(ctx -> {
+            if (unmeteredPaths.contains(ctx.path())) {
+                return;
+            }
+            if (shedder != null && !shedder.admit()) {
+                ctx.header("Retry-After", "1");
+                throw new ServiceUnavailableResponse("Server overloaded, retry later");
+            }
+            String ip = ctx.ip();
+            if (router == null || !router.isPeer(ctx)) {
+                enforce(ctx, ipRate, ip);
+                if (authPaths.contains(ctx.path())) {
+                    enforce(ctx, authRate, ip);
+                }
+            }
+        });
+        app.before(ctx -> {
+            if (unmeteredPaths.contains(ctx.path())) {
+                return;
+            }
+            Bulkhead limit = authPaths.contains(ctx.path()) ? authLimit
+                    : ctx.method() == HandlerType.GET ? readLimit : writeLimit;
+            if (!limit.tryEnter()) {
+                ctx.header("Retry-After", "1");
+                throw new ServiceUnavailableResponse("Too many concurrent " + limit.name() + " requests");
+            }
+            ctx.attribute("bulkhead", limit);
+        });
+
+        app.after(ctx -> {
+            Bulkhead limit = ctx.attribute("bulkhead");
+            if (limit != null) {
+                limit.exit();
+            }
         });
 
-        Set<String> openPaths = Set.of("/login", "/register");
         app.before(ctx -> {
             if (openPaths.contains(ctx.path())) {
                 return;
@@ -37,33 +375,108 @@ public class TokenServer {
             }
         });
 
+        app.before(ctx -> {
+            String username = ctx.attribute("username");
+            if (username != null && !"/events".equals(ctx.path())) {
+                enforce(ctx, ctx.method() == HandlerType.GET ? readRate : writeRate, username);
+            }
+        });
+
+        if (router != null) {
+            // /squad spans users of several nodes and fetches from their owners itself
+            Set<String> nodeLocalPaths = Set.of("/metrics", "/ready", "/stats", "/leaderboard", "/leaderboard/stats", "/squad");
+            app.before(ctx -> {
+                String path = ctx.path();
+                if (nodeLocalPaths.contains(path) || path.startsWith("/admin/")) {
+                    return;
+                }
+                String username = ctx.attribute("username");
+                try {
+                    if (authPaths.contains(path)) {
+                        username = Json.CREDENTIALS_READER.<Json.Credentials>readValue(ctx.bodyAsBytes()).username;
+                    } else if ("/refresh".equals(path)) {
+                        username = UserService.refreshSubject(
+                                Json.REFRESH_READER.<Json.RefreshRequest>readValue(ctx.bodyAsBytes()).refreshToken);
+                    }
+                } catch (IOException e) {
+                    return; // malformed; the local handler answers it
+                }
+                if (username != null) {
+                    router.route(ctx, username);
+                }
+            });
+            app.after(router::release);
+            app.exception(ShardRouter.Forwarded.class, (e, ctx) -> {
+                // already answered by the owning node
+            });
+        }
+
+        // a user deleted while still holding a valid token
+        app.exception(NoSuchFileException.class, (e, ctx) -> ctx.status(HttpStatus.NOT_FOUND).result("No such user"));
+
+        // a write racing a CLI edit the watcher has not reloaded yet
+        app.exception(UserFiles.ExternalChangeException.class, (e, ctx) -> {
+            ctx.header("Retry-After", "1");
+            ctx.status(HttpStatus.CONFLICT).result("Changed by another program, retry");
+        });
+
+        app.exception(RejectedExecutionException.class, (e, ctx) -> {
+            ctx.header("Retry-After", String.valueOf(HashingPool.RETRY_AFTER_SECONDS));
+            ctx.status(HttpStatus.SERVICE_UNAVAILABLE).result("Server busy, retry later");
+        });
+
         app.post("/register", ctx -> {
-            Map<String, String> creds = mapper.readValue(ctx.body(), new TypeReference<>() {});
-            String username = creds.get("username");
-            String password = creds.get("password");
+            Json.Credentials creds = Json.CREDENTIALS_READER.readValue(ctx.bodyAsBytes());
+            String username = creds.username;
+            String password = creds.password;
             if (username == null || password == null) {
                 ctx.status(HttpStatus.BAD_REQUEST);
                 return;
             }
-            boolean ok = UserService.register(username, password);
-            if (ok) {
-                String token = UserService.issueToken(username);
-                ctx.status(HttpStatus.CREATED).json(Map.of("token", token));
-            } else {
-                ctx.status(HttpStatus.CONFLICT);
+            if (!UserService.fitsField(username)) {
+                ctx.status(HttpStatus.BAD_REQUEST).result("Username longer than " + UserService.MAX_FIELD_BYTES + " bytes");
+                return;
             }
+            CompletableFuture<Boolean> registered = HashingPool.submit(() -> UserService.register(username, password));
+            ctx.future(() -> registered.thenAccept(ok -> {
+                if (ok) {
+                    leaderboard.set(username, store.version(username), new int[UserRecord.CELLS]);
+                    ctx.status(HttpStatus.CREATED).json(tokenPair(username));
+                } else {
+                    ctx.status(HttpStatus.CONFLICT);
+                }
+            }));
         });
 
         app.post("/login", ctx -> {
-            Map<String, String> creds = mapper.readValue(ctx.body(), new TypeReference<>() {});
-            String username = creds.get("username");
-            String password = creds.get("password");
-            if (username != null && password != null && UserService.validate(username, password)) {
-                String token = UserService.issueToken(username);
-                ctx.json(Map.of("token", token));
-            } else {
+            Json.Credentials creds = Json.CREDENTIALS_READER.readValue(ctx.bodyAsBytes());
+            String username = creds.username;
+            String password = creds.password;
+            if (username == null || password == null) {
                 ctx.status(HttpStatus.UNAUTHORIZED);
+                return;
             }
+            CompletableFuture<Boolean> valid = HashingPool.submit(() -> UserService.validate(username, password));
+            ctx.future(() -> valid.thenAccept(ok -> {
+                if (ok) {
+                    ctx.json(tokenPair(username));
+                } else {
+                    ctx.status(HttpStatus.UNAUTHORIZED);
+                }
+            }));
+        });
+
+        // trades a refresh token for a new pair without bcrypt, so clients need not log in again after a restart
+        app.post("/refresh", ctx -> {
+            Json.RefreshRequest in = Json.REFRESH_READER.readValue(ctx.bodyAsBytes());
+            String username = UserService.refresh(in.refreshToken);
+            Metrics.counter("codxp_token_refresh_total", "Refresh tokens presented to /refresh, by outcome.",
+                    "result=" + Metrics.quote(username == null ? "rejected" : "ok")).inc();
+            if (username == null) {
+                ctx.status(HttpStatus.UNAUTHORIZED).result("Invalid or expired refresh token");
+                return;
+            }
+            ctx.json(tokenPair(username));
         });
 
         app.get("/profile", ctx -> {
@@ -71,7 +484,9 @@ public class TokenServer {
             if (username == null) {
                 return;
             }
-            ctx.json(UserService.getProfile(username));
+            long version = responses.profileVersion(username);
+            sendVersioned(ctx, version, (format, gzip) ->
+                    profileBodies.encoded(username, version, format, gzip, () -> UserService.getProfile(username)));
         });
 
         app.put("/profile", ctx -> {
@@ -79,21 +494,30 @@ public class TokenServer {
             if (username == null) {
                 return;
             }
-            Map<String, Object> in = mapper.readValue(ctx.body(), new TypeReference<>() {});
-            String codName = Objects.toString(in.get("cod_username"), "");
-            String prestige = Objects.toString(in.get("prestige"), "");
-            int level = 1;
-            Object lvlObj = in.get("level");
-            if (lvlObj instanceof Number) {
-                level = ((Number) lvlObj).intValue();
-            } else if (lvlObj instanceof String) {
-                try {
-                    level = Integer.parseInt((String) lvlObj);
-                } catch (NumberFormatException ignored) {
-                }
+            Json.ProfileUpdate in = Json.PROFILE_READER.readValue(ctx.bodyAsBytes());
+            String codName = Objects.toString(in.codUsername, "");
+            String prestige = Objects.toString(in.prestige, "");
+            int level = Math.min(1000, Math.max(1, Json.parseLevel(in.level, 1)));
+            if (!UserService.fitsField(codName) || !UserService.fitsField(prestige)) {
+                ctx.status(HttpStatus.BAD_REQUEST)
+                        .result("cod_username and prestige may be at most " + UserService.MAX_FIELD_BYTES + " bytes");
+                return;
+            }
+            long expected = ResponseCache.expectedVersion(ctx.header("If-Match"));
+            if (responses.beginProfileWrite(username, expected) < 0) {
+                long current = responses.profileVersion(username);
+                ctx.header("ETag", ResponseCache.etag(current));
+                ctx.status(HttpStatus.CONFLICT).json(UserService.getProfile(username));
+                return;
             }
-            level = Math.min(1000, Math.max(1, level));
-            UserService.updateProfile(username, codName, prestige, level);
+            long version;
+            try {
+                UserService.updateProfile(username, codName, prestige, level);
+            } finally {
+                version = responses.endProfileWrite(username);
+            }
+            events.profileChanged(username);
+            ctx.header("ETag", ResponseCache.etag(version));
             ctx.status(HttpStatus.NO_CONTENT);
         });
 
@@ -102,10 +526,9 @@ public class TokenServer {
             if (username == null) {
                 return;
             }
-            Map<TokenCategory, List<Integer>> data = TokenLib.readAllTokens(UserService.getTokensFile(), username);
-            Map<String, List<Integer>> out = new LinkedHashMap<>();
-            data.forEach((k, v) -> out.put(k.key(), v));
-            ctx.json(out);
+            TokenStore.State state = store.state(username);
+            sendVersioned(ctx, state.version, (format, gzip) ->
+                    tokenBodies.encoded(username, state.version, format, gzip, () -> tokensJson(state.counts)));
         });
 
         app.put("/tokens", ctx -> {
@@ -113,40 +536,420 @@ public class TokenServer {
             if (username == null) {
                 return;
             }
-            Map<String, List<Integer>> in = mapper.readValue(ctx.body(), new TypeReference<>() {});
-            Map<TokenCategory, List<Integer>> data = new EnumMap<>(TokenCategory.class);
-            in.forEach((k, v) -> {
-                TokenCategory cat = TokenCategory.valueOf(k.toUpperCase());
-                data.put(cat, v);
-            });
-            TokenLib.writeAllTokens(UserService.getTokensFile(), username, data);
+            Map<String, int[]> in;
+            try {
+                in = Json.COUNTS_READER.readValue(ctx.bodyAsBytes());
+            } catch (JsonProcessingException e) {
+                ctx.status(HttpStatus.BAD_REQUEST).result(e.getOriginalMessage());
+                return;
+            }
+            int n = TokenLib.MINUTE_BUCKETS.length;
+            int[] counts = new int[UserRecord.CELLS];
+            for (Map.Entry<String, int[]> e : in.entrySet()) {
+                TokenCategory cat = parseCategory(e.getKey());
+                if (cat == null) {
+                    ctx.status(HttpStatus.BAD_REQUEST).result("Unknown category " + e.getKey());
+                    return;
+                }
+                int[] values = e.getValue();
+                if (values == null || values.length != n) {
+                    ctx.status(HttpStatus.BAD_REQUEST).result("Expected " + n + " counts for " + e.getKey());
+                    return;
+                }
+                for (int v : values) {
+                    if (v < 0 || v > TokenStore.MAX_COUNT) {
+                        ctx.status(HttpStatus.BAD_REQUEST)
+                                .result("Counts must be between 0 and " + TokenStore.MAX_COUNT + " for " + e.getKey());
+                        return;
+                    }
+                }
+                System.arraycopy(values, 0, counts, cat.ordinal() * n, n);
+            }
+            long expected = ResponseCache.expectedVersion(ctx.header("If-Match"));
+            TokenStore.State state = expected == ResponseCache.ANY
+                    ? store.put(username, counts)
+                    : store.putIfVersion(username, counts, expected);
+            if (state == null) {
+                TokenStore.State current = store.state(username);
+                ctx.header("ETag", ResponseCache.etag(current.version));
+                ctx.status(HttpStatus.CONFLICT).json(tokensJson(current.counts));
+                return;
+            }
+            ctx.header("ETag", ResponseCache.etag(state.version));
             ctx.status(HttpStatus.NO_CONTENT);
         });
 
+        app.patch("/tokens", ctx -> {
+            String username = ctx.attribute("username");
+            if (username == null) {
+                return;
+            }
+            JsonNode body = Json.MAPPER.readTree(ctx.bodyAsBytes());
+            JsonNode list = body.isArray() ? body : body.has("deltas") ? body.get("deltas") : null;
+            List<JsonNode> items = new ArrayList<>();
+            if (list == null) {
+                items.add(body);
+            } else {
+                list.forEach(items::add);
+            }
+            int[] cells = new int[items.size()];
+            int[] deltas = new int[items.size()];
+            for (int i = 0; i < items.size(); i++) {
+                JsonNode item = items.get(i);
+                TokenCategory cat = parseCategory(item.path("category").asText());
+                int bucket = TokenLib.bucketIndex(item.path("bucket").asInt(-1));
+                if (cat == null || bucket < 0 || !item.path("delta").canConvertToInt()) {
+                    ctx.status(HttpStatus.BAD_REQUEST).result("Invalid delta at index " + i);
+                    return;
+                }
+                cells[i] = TokenStore.cell(cat, bucket);
+                deltas[i] = item.get("delta").asInt();
+            }
+            long expected = ResponseCache.expectedVersion(ctx.header("If-Match"));
+            TokenStore.State state = expected == ResponseCache.ANY
+                    ? store.applyDeltas(username, cells, deltas)
+                    : store.applyDeltasIfVersion(username, cells, deltas, expected);
+            if (state == null) {
+                TokenStore.State current = store.state(username);
+                ctx.header("ETag", ResponseCache.etag(current.version));
+                ctx.status(HttpStatus.CONFLICT).json(tokensJson(current.counts));
+                return;
+            }
+            ctx.header("ETag", ResponseCache.etag(state.version));
+            ctx.json(tokensJson(state.counts));
+        });
+
         app.get("/totals", ctx -> {
             String username = ctx.attribute("username");
             if (username == null) {
                 return;
             }
-            Map<TokenCategory, List<Integer>> data = TokenLib.readAllTokens(UserService.getTokensFile(), username);
+            TokenStore.State state = store.state(username);
+            sendVersioned(ctx, state.version, (format, gzip) ->
+                    totalsBodies.encoded(username, state.version, format, gzip, () -> totalsJson(state)));
+        });
+
+        app.get("/squad", ctx -> {
+            String username = ctx.attribute("username");
+            if (username == null) {
+                return;
+            }
+            boolean admin = UserService.isAdmin(username);
+            Set<String> wanted = new LinkedHashSet<>();
+            String group = ctx.queryParam("group");
+            if (group != null) {
+                Set<String> members = groups.members(group);
+                if (members == null || !admin && !members.contains(username)) {
+                    ctx.status(HttpStatus.NOT_FOUND).result("No group " + group + " with you in it");
+                    return;
+                }
+                wanted.addAll(members);
+            }
+            for (String list : ctx.queryParams("users")) {
+                for (String name : list.split(",")) {
+                    if (!name.isBlank()) {
+                        wanted.add(name.trim());
+                    }
+                }
+            }
+            if (wanted.isEmpty() || wanted.size() > squadMaxUsers) {
+                ctx.status(HttpStatus.BAD_REQUEST).result("Name between 1 and " + squadMaxUsers + " users or a group");
+                return;
+            }
+            if (!admin) {
+                List<String> denied = new ArrayList<>();
+                for (String name : wanted) {
+                    if (!groups.canRead(username, name)) {
+                        denied.add(name);
+                    }
+                }
+                if (!denied.isEmpty()) {
+                    ctx.status(HttpStatus.FORBIDDEN).result("Not in a group with " + String.join(", ", denied));
+                    return;
+                }
+            }
+            squad.write(ctx, new ArrayList<>(wanted));
+        });
+
+        app.get("/history", ctx -> {
+            String username = ctx.attribute("username");
+            if (username == null) {
+                return;
+            }
+            String bucket = Objects.toString(ctx.queryParam("bucket"), "day");
+            if (!bucket.equals("day") && !bucket.equals("hour")) {
+                ctx.status(HttpStatus.BAD_REQUEST).result("bucket must be day or hour");
+                return;
+            }
+            long to;
+            long from;
+            try {
+                to = parseTime(ctx.queryParam("to"), System.currentTimeMillis());
+                from = parseTime(ctx.queryParam("from"), to - Duration.ofDays(30).toMillis());
+            } catch (DateTimeParseException | NumberFormatException e) {
+                ctx.status(HttpStatus.BAD_REQUEST).result("from/to must be ISO dates, instants or epoch millis");
+                return;
+            }
+            List<Map<String, Object>> out = new ArrayList<>();
+            history.query(username, from, to, bucket.equals("day")).forEach((start, slots) -> {
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("start", Instant.ofEpochMilli(start).toString());
+                row.putAll(TokenHistory.slotsJson(slots));
+                out.add(row);
+            });
+            ctx.json(out);
+        });
+
+        app.get("/plan", ctx -> {
+            String username = ctx.attribute("username");
+            if (username == null) {
+                return;
+            }
+            List<Integer> targets = new ArrayList<>();
+            for (String value : ctx.queryParams("minutes")) {
+                for (String part : value.split(",")) {
+                    try {
+                        targets.add(Integer.parseInt(part.trim()));
+                    } catch (NumberFormatException e) {
+                        targets.add(-1);
+                    }
+                }
+            }
+            if (targets.isEmpty() || targets.size() > MAX_PLAN_TARGETS
+                    || targets.stream().anyMatch(t -> t < 0 || t > MAX_PLAN_MINUTES)) {
+                ctx.status(HttpStatus.BAD_REQUEST)
+                        .result("Give 1 to " + MAX_PLAN_TARGETS + " minutes values between 0 and " + MAX_PLAN_MINUTES);
+                return;
+            }
+            String objectiveParam = ctx.queryParamAsClass("objective", String.class).getOrDefault("waste");
+            TokenLib.PlanObjective objective = "tokens".equals(objectiveParam) ? TokenLib.PlanObjective.FEWEST_TOKENS
+                    : "waste".equals(objectiveParam) ? TokenLib.PlanObjective.LEAST_WASTE : null;
+            if (objective == null) {
+                ctx.status(HttpStatus.BAD_REQUEST).result("objective must be tokens or waste");
+                return;
+            }
+            List<TokenCategory> categories = new ArrayList<>();
+            for (String key : ctx.queryParams("category")) {
+                TokenCategory cat = parseCategory(key);
+                if (cat == null) {
+                    ctx.status(HttpStatus.BAD_REQUEST).result("Unknown category " + key);
+                    return;
+                }
+                categories.add(cat);
+            }
+            if (categories.isEmpty()) {
+                categories.addAll(Arrays.asList(TokenCategory.values()));
+            }
+            // what-if: plan against the given counts instead of the user's own
+            int n = TokenLib.MINUTE_BUCKETS.length;
+            int[] whatIf = null;
+            String countsParam = ctx.queryParam("counts");
+            if (countsParam != null) {
+                String[] parts = countsParam.split(",");
+                whatIf = new int[n];
+                try {
+                    for (int i = 0; i < n; i++) {
+                        whatIf[i] = i < parts.length ? Math.max(0, Integer.parseInt(parts[i].trim())) : 0;
+                    }
+                } catch (NumberFormatException e) {
+                    ctx.status(HttpStatus.BAD_REQUEST).result("counts must be " + n + " comma-separated numbers");
+                    return;
+                }
+            }
+            int[] counts = store.state(username).counts;
+            Map<String, Object> plans = new LinkedHashMap<>();
+            for (TokenCategory cat : categories) {
+                int[] have = whatIf != null ? whatIf : Arrays.copyOfRange(counts, cat.ordinal() * n, cat.ordinal() * n + n);
+                List<Map<String, Object>> out = new ArrayList<>();
+                for (int target : targets) {
+                    out.add(planJson(TokenLib.plan(have, target, objective)));
+                }
+                plans.put(cat.key(), out);
+            }
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("objective", objectiveParam);
+            body.put("plans", plans);
+            ctx.json(body);
+        });
+
+        app.get("/leaderboard", ctx -> {
+            int board = leaderboardBoard(ctx, leaderboard);
+            if (board < 0) {
+                return;
+            }
+            int from = Math.max(1, ctx.queryParamAsClass("from", Integer.class).getOrDefault(1));
+            int limit = Math.min(100, Math.max(1, ctx.queryParamAsClass("limit", Integer.class).getOrDefault(10)));
+            List<Map<String, Object>> entries = new ArrayList<>();
+            for (RankedIndex.Ranked r : leaderboard.page(board, from, limit)) {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("rank", r.rank);
+                entry.put("username", r.name);
+                entry.put("minutes", r.score);
+                entries.add(entry);
+            }
+            ctx.json(entries);
+        });
+
+        app.get("/leaderboard/me", ctx -> {
+            int board = leaderboardBoard(ctx, leaderboard);
+            if (board < 0) {
+                return;
+            }
+            long[] s = leaderboard.standing(board, ctx.attribute("username"));
+            if (s == null) {
+                ctx.status(HttpStatus.NOT_FOUND).result("Not ranked yet");
+                return;
+            }
+            Map<String, Object> out = new LinkedHashMap<>();
+            out.put("rank", s[0]);
+            out.put("of", s[1]);
+            out.put("minutes", s[2]);
+            out.put("percentile", s[3]);
+            ctx.json(out);
+        });
+
+        app.get("/leaderboard/stats", ctx -> {
+            int board = leaderboardBoard(ctx, leaderboard);
+            if (board < 0) {
+                return;
+            }
+            long[] s = leaderboard.stats(board, 50, 90, 99);
+            Map<String, Object> out = new LinkedHashMap<>();
+            out.put("users", s[0]);
+            out.put("total_minutes", s[1]);
+            out.put("mean_minutes", s[0] == 0 ? 0.0 : (double) s[1] / s[0]);
+            out.put("p50", s[2]);
+            out.put("p90", s[3]);
+            out.put("p99", s[4]);
+            ctx.json(out);
+        });
+
+        app.sse("/events", client -> {
+            String username = client.ctx().attribute("username");
+            if (username == null) {
+                client.close();
+                return;
+            }
+            events.subscribe(username, client);
+        });
+
+        app.get("/stats", ctx -> {
+            String username = ctx.attribute("username");
+            if (username == null) {
+                return;
+            }
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("auth_cache", UserService.authCacheStats());
+            stats.put("sse_connections", events.connectionCount());
+            Map<String, Object> inFlight = new LinkedHashMap<>();
+            for (Bulkhead limit : List.of(authLimit, readLimit, writeLimit)) {
+                inFlight.put(limit.name(), limit.inFlight());
+            }
+            stats.put("in_flight", inFlight);
+            if (router != null) {
+                Map<String, Object> shard = new LinkedHashMap<>();
+                shard.put("self", router.self());
+                shard.put("nodes", router.nodes());
+                stats.put("shard", shard);
+            }
+            ctx.json(stats);
+        });
+
+        app.get("/admin/export", ctx -> {
+            if (!requireAdmin(ctx)) {
+                return;
+            }
+            store.flush(); // export what clients have seen, not what the flusher has reached
+            ctx.contentType("application/x-ndjson");
+            ctx.header("Content-Disposition", "attachment; filename=\"users.ndjson\"");
+            UserStorage storage = UserService.storage();
+            List<String> usernames = new ArrayList<>(storage.usernames());
+            if (router != null) {
+                usernames.removeIf(username -> !router.owns(username));
+            }
+            UserTransfer.export(storage, usernames, ctx.outputStream());
+        });
+
+        int importBatch = Integer.getInteger("codxp.importBatch", 500);
+        app.post("/admin/import", ctx -> {
+            if (!requireAdmin(ctx)) {
+                return;
+            }
+            try {
+                long n = UserTransfer.importFrom(UserService.storage(), ctx.bodyInputStream(), importBatch, batch -> {
+                    for (UserRecord r : batch) {
+                        store.adopt(r.username, r.tokens);
+                        responses.profileChanged(r.username);
+                        leaderboard.set(r.username, store.version(r.username), r.tokens);
+                    }
+                });
+                ctx.json(Map.of("imported", n));
+            } catch (JsonProcessingException e) {
+                long line = e.getLocation() == null ? -1 : e.getLocation().getLineNr();
+                ctx.status(HttpStatus.BAD_REQUEST)
+                        .result("Line " + line + ": " + e.getOriginalMessage() + " (batches before it were imported)");
+            }
+        });
+
+        app.post("/admin/rebalance", ctx -> {
+            if (!requireAdmin(ctx)) {
+                return;
+            }
+            if (router == null) {
+                ctx.status(HttpStatus.BAD_REQUEST).result("This server is not sharded");
+                return;
+            }
+            List<String> nodes = new ArrayList<>();
+            Json.MAPPER.readTree(ctx.bodyAsBytes()).path("nodes").forEach(n -> nodes.add(n.asText()));
+            if (nodes.isEmpty()) {
+                ctx.status(HttpStatus.BAD_REQUEST).result("Body must list the new membership as {\"nodes\": [...]}");
+                return;
+            }
+            try {
+                Map<String, Long> moved = router.rebalance(ShardRouter.parseNodes(String.join(",", nodes)),
+                        ctx.header("Authorization"), UserService.storage(), store);
+                leaderboard.retain(router::owns);
+                Map<String, Object> out = new LinkedHashMap<>();
+                out.put("nodes", router.nodes());
+                out.put("moved", moved);
+                ctx.json(out);
+            } catch (IOException e) {
+                ctx.status(HttpStatus.BAD_GATEWAY).result("Rebalance failed, membership unchanged: " + e.getMessage());
+            }
+        });
+
+        app.get("/ready", ctx -> {
+            BootWarmup.Report report = warmup.report();
+            if (report == null) {
+                ctx.header("Retry-After", "1");
+                ctx.status(HttpStatus.SERVICE_UNAVAILABLE).json(Map.of("ready", false));
+                return;
+            }
             Map<String, Object> out = new LinkedHashMap<>();
-            int grand = 0;
-            for (TokenCategory cat : TokenCategory.values()) {
-                List<Integer> tokens = data.get(cat);
-                var totals = TokenLib.computeTotals(tokens);
-                Map<String, Object> stats = new LinkedHashMap<>();
-                stats.put("minutes", totals.getKey());
-                stats.put("hours", totals.getValue());
-                out.put(cat.key(), stats);
-                grand += totals.getKey();
-            }
-            Map<String, Object> grandStats = new LinkedHashMap<>();
-            grandStats.put("minutes", grand);
-            grandStats.put("hours", grand / 60.0);
-            out.put("grand", grandStats);
+            out.put("ready", true);
+            out.put("users", report.users);
+            out.put("malformed", report.malformed);
+            out.put("warmup_ms", report.millis);
             ctx.json(out);
         });
 
-        app.start(7001);
+        app.get("/metrics", ctx -> ctx.contentType("text/plain; version=0.0.4; charset=utf-8").result(Metrics.scrape()));
+
+        app.events(event -> event.serverStopped(() -> {
+            try {
+                history.close();
+            } catch (Exception e) {
+                System.err.println("Closing token history failed: " + e);
+            }
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    System.err.println("Closing the user file watcher failed: " + e);
+                }
+            }
+        }));
+
+        return app;
     }
 }
@@ -0,0 +1,325 @@
+package com.codxp.tokens;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Resident per-user token store. Counts are kept in memory as fixed
+ * primitive counters and served from there; users whose counts changed
+ * are written back to disk by a background flusher on a fixed interval
+ * and once more when the store is closed.
+ */
+public class TokenStore implements AutoCloseable {
+    private static final Metrics.Histogram FLUSHES = Metrics.histogram("codxp_token_flush_seconds",
+            "Time spent writing changed token counts back to storage.", "");
+
+    /** Largest count a counter may hold; with every counter at it, the grand total of minutes still fits an {@code int}. */
+    static final int MAX_COUNT = 1_000_000;
+
+    private final String tokensFile;
+    private final ConcurrentHashMap<String, Entry> users = new ConcurrentHashMap<>();
+    /**
+     * Last version of users evicted and not loaded since. A user loaded again
+     * continues after it, so versions (and the ETags built from them) never
+     * repeat for the same user within one run.
+     */
+    private final ConcurrentHashMap<String, Long> evictedVersions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Notified after every committed change, on the thread that made it. */
+    interface Listener {
+        void tokensChanged(String username, State before, State after);
+    }
+
+    /**
+     * Immutable view of one user's counts at a given version, together with
+     * the per-category minute totals and the grand total derived from them.
+     */
+    static final class State {
+        final long version;
+        final int[] counts;
+        /** Minutes per category, indexed by {@link TokenCategory#ordinal()}. */
+        final int[] minutes;
+        final int grandMinutes;
+
+        State(long version, int[] counts, int[] minutes, int grandMinutes) {
+            this.version = version;
+            this.counts = counts;
+            this.minutes = minutes;
+            this.grandMinutes = grandMinutes;
+        }
+
+        /** Build a state, computing its totals from scratch. */
+        static State of(long version, int[] counts) {
+            int n = TokenLib.MINUTE_BUCKETS.length;
+            int[] minutes = new int[TokenCategory.values().length];
+            int grand = 0;
+            for (int c = 0; c < minutes.length; c++) {
+                minutes[c] = TokenLib.computeTotalMinutes(counts, c * n);
+                grand += minutes[c];
+            }
+            return new State(version, counts, minutes, grand);
+        }
+    }
+
+    private static final class Entry {
+        final AtomicReference<State> state;
+        volatile long flushedVersion;
+
+        Entry(int[] counts, long version) {
+            this.state = new AtomicReference<>(State.of(version, counts));
+        }
+    }
+
+    /** A resident entry for counts just read from storage, continuing after any evicted version. */
+    private Entry load(String username, int[] counts) {
+        Long last = evictedVersions.remove(username);
+        return new Entry(counts, last == null ? 0 : last + 1);
+    }
+
+    public TokenStore(String tokensFile, long flushIntervalMillis) {
+        this.tokensFile = tokensFile;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "token-store-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private Entry entry(String username) throws IOException {
+        try {
+            return users.computeIfAbsent(username, u -> {
+                try {
+                    return load(u, TokenLib.readCounts(tokensFile, u));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Compare-and-set loop applying {@code change}; listeners see the committed
+     * transition. A change may return null to abandon the update, in which
+     * case null is returned and nothing is committed.
+     */
+    private State update(String username, UnaryOperator<State> change) throws IOException {
+        AtomicReference<State> ref = entry(username).state;
+        State before;
+        State after;
+        do {
+            before = ref.get();
+            after = change.apply(before);
+            if (after == null) {
+                return null;
+            }
+        } while (!ref.compareAndSet(before, after));
+        for (Listener l : listeners) {
+            l.tokensChanged(username, before, after);
+        }
+        return after;
+    }
+
+    State state(String username) throws IOException {
+        return entry(username).state.get();
+    }
+
+    /**
+     * Like {@link #state}, but null for a user that was never stored rather
+     * than the legacy file's counts; the {@code default} user still falls
+     * back to that file.
+     */
+    State existingState(String username) throws IOException {
+        Entry entry = users.get(username);
+        if (entry == null && !"default".equals(username)) {
+            UserRecord record = Storage.forTokensFile(tokensFile).load(username);
+            if (record == null) {
+                return null;
+            }
+            preload(username, record.tokens);
+        }
+        return state(username);
+    }
+
+    /** Return the current token counts for the user, loading them on first access. */
+    public Map<TokenCategory, List<Integer>> get(String username) throws IOException {
+        return TokenLib.fromCounts(state(username).counts);
+    }
+
+    /** Replace all token counts for the user; the change is persisted on the next flush. */
+    public void put(String username, Map<TokenCategory, List<Integer>> data) throws IOException {
+        put(username, TokenLib.toCounts(data));
+    }
+
+    /** Primitive form of {@link #put(String, Map)}, laid out as in {@link UserRecord#tokens}; takes ownership of the array. */
+    State put(String username, int[] counts) throws IOException {
+        return update(username, s -> State.of(s.version + 1, counts));
+    }
+
+    /**
+     * Replace the counts only if they are still at {@code expectedVersion}.
+     * Returns the new state, or null if another write got there first.
+     */
+    State putIfVersion(String username, int[] counts, long expectedVersion) throws IOException {
+        return update(username, s -> s.version == expectedVersion ? State.of(s.version + 1, counts) : null);
+    }
+
+    /**
+     * Atomically add {@code deltas[i]} to counter {@code cells[i]} for every i,
+     * clamping each counter between zero and {@link #MAX_COUNT}. All deltas
+     * are applied together or, if a concurrent write wins the race, retried
+     * against the newer counts. Totals are adjusted by the applied change
+     * rather than recomputed.
+     */
+    public State applyDeltas(String username, int[] cells, int[] deltas) throws IOException {
+        return update(username, s -> withDeltas(s, cells, deltas));
+    }
+
+    /**
+     * Apply the deltas only if the counts are still at {@code expectedVersion}.
+     * Returns the new state, or null if another write got there first.
+     */
+    State applyDeltasIfVersion(String username, int[] cells, int[] deltas, long expectedVersion) throws IOException {
+        return update(username, s -> s.version == expectedVersion ? withDeltas(s, cells, deltas) : null);
+    }
+
+    private static State withDeltas(State s, int[] cells, int[] deltas) {
+        int n = TokenLib.MINUTE_BUCKETS.length;
+        int[] counts = s.counts.clone();
+        int[] minutes = s.minutes.clone();
+        int grand = s.grandMinutes;
+        for (int i = 0; i < cells.length; i++) {
+            int cell = cells[i];
+            long v = (long) counts[cell] + deltas[i];
+            int next = (int) Math.max(0, Math.min(MAX_COUNT, v));
+            int changed = (next - counts[cell]) * TokenLib.MINUTE_BUCKETS[cell % n];
+            counts[cell] = next;
+            minutes[cell / n] += changed;
+            grand += changed;
+        }
+        return new State(s.version + 1, counts, minutes, grand);
+    }
+
+    /**
+     * Take over counts that were written to storage directly, as a bulk import
+     * does. Users that are not loaded need nothing: they read storage on first
+     * access. Loaded users get the new counts as their next version.
+     */
+    void adopt(String username, int[] counts) throws IOException {
+        if (users.containsKey(username)) {
+            int[] copy = counts.clone();
+            update(username, s -> State.of(s.version + 1, copy));
+        }
+    }
+
+    /**
+     * Take over counts that another program (such as the CLI) wrote to
+     * storage. A loaded user gets them as the next version, which counts as
+     * flushed since it came from disk; unflushed changes made here meanwhile
+     * are lost, as the later write on disk wins. Returns false, doing
+     * nothing, if the user is not loaded.
+     */
+    synchronized boolean external(String username, int[] counts) throws IOException {
+        Entry entry = users.get(username);
+        if (entry == null) {
+            return false;
+        }
+        int[] copy = counts.clone();
+        State s = update(username, st -> Arrays.equals(st.counts, copy) ? null : State.of(st.version + 1, copy));
+        if (s != null) {
+            entry.flushedVersion = s.version;
+        }
+        return true;
+    }
+
+    /**
+     * Forget a user whose data another program deleted, so it is not written
+     * back. Its version is remembered, and a later load carries on from it.
+     */
+    synchronized void evict(String username) {
+        Entry entry = users.remove(username);
+        if (entry != null) {
+            evictedVersions.merge(username, entry.state.get().version, Math::max);
+        }
+    }
+
+    /** The user's current version or, if not loaded, the version its counts will be loaded at. */
+    long version(String username) {
+        Entry entry = users.get(username);
+        if (entry != null) {
+            return entry.state.get().version;
+        }
+        Long last = evictedVersions.get(username);
+        return last == null ? 0 : last + 1;
+    }
+
+    /** Make counts read at boot resident, unless the user was loaded meanwhile; takes ownership of the array. */
+    void preload(String username, int[] counts) {
+        users.computeIfAbsent(username, u -> load(u, counts));
+    }
+
+    /** Index of the counter for the given category and minute bucket. */
+    static int cell(TokenCategory cat, int bucketIndex) {
+        return cat.ordinal() * TokenLib.MINUTE_BUCKETS.length + bucketIndex;
+    }
+
+    /** Write every user with unflushed changes back to disk. */
+    public synchronized void flush() throws IOException {
+        long start = System.nanoTime();
+        int written = 0;
+        IOException failure = null;
+        for (Map.Entry<String, Entry> e : users.entrySet()) {
+            Entry entry = e.getValue();
+            State s = entry.state.get();
+            if (s.version == entry.flushedVersion) {
+                continue;
+            }
+            try {
+                TokenLib.writeCounts(tokensFile, e.getKey(), s.counts);
+                entry.flushedVersion = s.version;
+                written++;
+            } catch (UserFiles.ExternalChangeException ex) {
+                // the watcher reloads the edit through external(); until then it must not be overwritten
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if (written > 0) {
+            FLUSHES.observeSince(start);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("Token flush failed: " + e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
@@ -0,0 +1,75 @@
+package com.codxp.tokens;
+
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonAnySetter;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Jackson binding of one user file under {@code data/users/}, the format
+ * shared with the Python CLI. Keys this class does not model are collected
+ * on read and written back unchanged, as are unknown token categories.
+ */
+@JsonPropertyOrder({"password_hash", "tokens", "cod_username", "prestige", "level"})
+final class UserFile {
+    @JsonProperty("password_hash")
+    String passwordHash = "";
+    @JsonProperty("tokens")
+    Map<String, int[]> tokens = new LinkedHashMap<>();
+    @JsonProperty("cod_username")
+    String codUsername = "";
+    @JsonProperty("prestige")
+    String prestige = "";
+    @JsonProperty("level")
+    Object level = 1;
+    private final Map<String, Object> other = new LinkedHashMap<>();
+
+    @JsonAnySetter
+    void setOther(String key, Object value) {
+        other.put(key, value);
+    }
+
+    @JsonAnyGetter
+    Map<String, Object> getOther() {
+        return other;
+    }
+
+    UserRecord toRecord(String username) {
+        UserRecord r = new UserRecord(username);
+        r.passwordHash = Objects.toString(passwordHash, "");
+        int n = TokenLib.MINUTE_BUCKETS.length;
+        if (tokens != null) {
+            for (TokenCategory cat : TokenCategory.values()) {
+                int[] vals = tokens.get(cat.key());
+                if (vals != null) {
+                    System.arraycopy(vals, 0, r.tokens, cat.ordinal() * n, Math.min(n, vals.length));
+                }
+            }
+        }
+        r.codUsername = Objects.toString(codUsername, "");
+        r.prestige = Objects.toString(prestige, "");
+        r.level = Json.parseLevel(level, 1);
+        return r;
+    }
+
+    /** Overwrite the modelled fields with the record's, keeping everything else. */
+    UserFile apply(UserRecord r) {
+        passwordHash = r.passwordHash;
+        if (tokens == null) {
+            tokens = new LinkedHashMap<>();
+        }
+        int n = TokenLib.MINUTE_BUCKETS.length;
+        for (TokenCategory cat : TokenCategory.values()) {
+            tokens.put(cat.key(), Arrays.copyOfRange(r.tokens, cat.ordinal() * n, cat.ordinal() * n + n));
+        }
+        codUsername = r.codUsername;
+        prestige = r.prestige;
+        level = r.level;
+        return this;
+    }
+}
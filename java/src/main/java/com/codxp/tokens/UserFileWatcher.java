@@ -0,0 +1,201 @@
+package com.codxp.tokens;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Change feed over {@code data/users/*.json} and the legacy tokens file, for
+ * edits made by other programs such as the Python and Java CLIs. Events are
+ * collected per file and handled once the file has been quiet for the
+ * debounce delay (or has kept changing for ten times that long). Bytes the
+ * server already knows, its own writes or a change it took over before, are
+ * recognised by {@link UserFiles#knownCrc} and skipped; until a change has
+ * been taken over, the server's writes to that file wait for it.
+ * If the OS drops events ({@code OVERFLOW}), every file whose modification
+ * time differs from the last one seen is treated as changed.
+ */
+final class UserFileWatcher implements Closeable {
+    /** Receives each external change on the watcher thread; {@code record} is null if the file was deleted. */
+    interface Listener {
+        void changed(String username, UserRecord record) throws IOException;
+    }
+
+    private static final Metrics.Counter CHANGES = Metrics.counter("codxp_external_changes_total",
+            "User files changed by other programs and picked up by the server.", "");
+
+    private final String tokensFile;
+    private final Path usersDir;
+    private final Path legacyFile;
+    private final long debounceNanos;
+    private final Listener listener;
+    private final WatchService watcher;
+    /** File to {first, last} event time; touched only by the watcher thread. */
+    private final Map<Path, long[]> pending = new HashMap<>();
+    private final Map<Path, Long> modified = new HashMap<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    UserFileWatcher(String tokensFile, long debounceMillis, Listener listener) throws IOException {
+        this.tokensFile = tokensFile;
+        this.usersDir = Storage.dataDir(tokensFile).resolve("users").toAbsolutePath().normalize();
+        this.legacyFile = Paths.get(tokensFile).toAbsolutePath().normalize();
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.listener = listener;
+        Files.createDirectories(usersDir);
+        this.watcher = FileSystems.getDefault().newWatchService();
+        WatchEvent.Kind<?>[] kinds = {StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE};
+        usersDir.register(watcher, kinds);
+        legacyFile.getParent().register(watcher, kinds);
+        scan(false);
+        UserFiles.setWatched(true);
+        this.thread = new Thread(this::run, "user-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watcher.poll(Math.max(1, TimeUnit.NANOSECONDS.toMillis(debounceNanos)), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (key != null) {
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        scan(true);
+                    } else {
+                        Path file = dir.resolve((Path) event.context());
+                        if (isWatched(file)) {
+                            pending.computeIfAbsent(file, f -> new long[] {now, now})[1] = now;
+                        }
+                    }
+                }
+                key.reset();
+            }
+            for (Iterator<Map.Entry<Path, long[]>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Path, long[]> e = it.next();
+                long[] times = e.getValue();
+                if (now - times[1] >= debounceNanos || now - times[0] >= 10 * debounceNanos) {
+                    it.remove();
+                    handle(e.getKey());
+                }
+            }
+        }
+    }
+
+    /** User files and the legacy tokens file; not the temp files they are written through. */
+    private boolean isWatched(Path file) {
+        if (file.equals(legacyFile)) {
+            return true;
+        }
+        String name = file.getFileName().toString();
+        return file.getParent().equals(usersDir) && name.endsWith(".json") && !name.startsWith(".");
+    }
+
+    /**
+     * Record every watched file's modification time; with {@code markChanged},
+     * queue those that differ from the last time seen, including deletions.
+     */
+    private void scan(boolean markChanged) {
+        Set<Path> seen = new HashSet<>();
+        List<Path> files = new ArrayList<>();
+        files.add(legacyFile);
+        try (Stream<Path> list = Files.list(usersDir)) {
+            list.filter(this::isWatched).forEach(files::add);
+        } catch (IOException e) {
+            System.err.println("Scanning " + usersDir + " failed: " + e);
+        }
+        long now = System.nanoTime();
+        for (Path file : files) {
+            try {
+                long mtime = Files.getLastModifiedTime(file).toMillis();
+                seen.add(file);
+                Long previous = modified.put(file, mtime);
+                if (markChanged && (previous == null || previous != mtime)) {
+                    pending.put(file, new long[] {now, now});
+                }
+            } catch (IOException e) {
+                // deleted since the listing, or the legacy file was never created
+            }
+        }
+        if (markChanged) {
+            for (Path file : modified.keySet()) {
+                if (!seen.contains(file)) {
+                    pending.put(file, new long[] {now, now});
+                }
+            }
+        }
+    }
+
+    private void handle(Path file) {
+        boolean legacy = file.equals(legacyFile);
+        String username = legacy ? "default" : file.getFileName().toString().replaceFirst("\\.json$", "");
+        try {
+            byte[] bytes;
+            Long known = null;
+            long crc = 0;
+            // our writes hold this lock, so the bytes read are never older than our last write
+            ReentrantLock lock = UserFiles.lockFor(username);
+            lock.lock();
+            try {
+                bytes = Files.readAllBytes(file);
+                modified.put(file, Files.getLastModifiedTime(file).toMillis());
+                known = UserFiles.knownCrc(file);
+                crc = UserFiles.crc(bytes);
+                if (known != null && known == crc) {
+                    return;
+                }
+            } catch (NoSuchFileException e) {
+                UserFiles.forget(file);
+                bytes = null;
+            } finally {
+                lock.unlock();
+            }
+            if (bytes == null) {
+                if (modified.remove(file) != null && !legacy) {
+                    CHANGES.inc();
+                    listener.changed(username, null);
+                }
+                return;
+            }
+            UserRecord record;
+            if (legacy) {
+                if (Files.exists(usersDir.resolve("default.json"))) {
+                    return; // the default user has moved to its own file; tokens.txt is no longer read
+                }
+                record = new UserRecord(username);
+                record.tokens = TokenLib.toCounts(TokenLib.readLegacyTokens(tokensFile));
+            } else {
+                record = Json.USER_FILE_READER.<UserFile>readValue(bytes).toRecord(username);
+            }
+            CHANGES.inc();
+            listener.changed(username, record);
+            UserFiles.adopt(file, known, crc);
+        } catch (JsonProcessingException e) {
+            // most likely caught mid-write by a program that does not replace files atomically; its next event retries
+            System.err.println("Ignoring unreadable change to " + file + ": " + e.getOriginalMessage());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Handling a change to " + file + " failed: " + e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        UserFiles.setWatched(false);
+        watcher.close();
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,175 @@
+package com.codxp.tokens;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Shared access to the per-user JSON files. Read-modify-write cycles on a
+ * user's file must hold {@link #lockFor(String)}; locks are striped by
+ * username so unrelated users never contend on the same lock. Files are
+ * replaced by writing a temp file next to the target and atomically moving
+ * it into place, so a crash never leaves a truncated file behind.
+ */
+final class UserFiles {
+    /** When to call fsync while replacing a file. */
+    enum FsyncPolicy {
+        /** Leave flushing to the operating system. */
+        NONE,
+        /** Force the temp file contents to disk before the move. */
+        FILE,
+        /** Also force the parent directory so the rename itself is durable. */
+        FULL
+    }
+
+    private static final int STRIPES = 64;
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[STRIPES];
+    private static final FsyncPolicy FSYNC =
+            FsyncPolicy.valueOf(System.getProperty("codxp.fsync", "file").toUpperCase());
+    /**
+     * CRC of the bytes the server's view of each file is based on: what this
+     * process last read or wrote there, or another program's change once the
+     * watcher has taken it over. Bytes that differ are an external change.
+     */
+    private static final ConcurrentHashMap<Path, Long> KNOWN = new ConcurrentHashMap<>();
+    /** Whether a {@link UserFileWatcher} takes over external changes; only then do writes wait for it. */
+    private static volatile boolean watched;
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    private UserFiles() {
+    }
+
+    static Path userFile(String tokensFile, String username) {
+        return Storage.dataDir(tokensFile).resolve("users").resolve(username + ".json");
+    }
+
+    static FsyncPolicy fsyncPolicy() {
+        return FSYNC;
+    }
+
+    /** Lock guarding writes to the given user's file. */
+    static ReentrantLock lockFor(String username) {
+        int h = username.hashCode();
+        h ^= (h >>> 16);
+        return LOCKS[h & (STRIPES - 1)];
+    }
+
+    /** Thrown instead of writing over another program's change that the watcher has not taken over yet. */
+    static final class ExternalChangeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ExternalChangeException(Path file) {
+            super(file + " was changed by another program and is being reloaded");
+        }
+    }
+
+    private static Path key(Path file) {
+        return file.toAbsolutePath().normalize();
+    }
+
+    static long crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    static void setWatched(boolean on) {
+        watched = on;
+    }
+
+    /**
+     * CRC of the bytes the server's view of {@code file} is based on, or null
+     * if it never read or wrote them. Read it with the user's
+     * {@link #lockFor lock} held around reading the file, so a write of ours
+     * cannot land in between.
+     */
+    static Long knownCrc(Path file) {
+        return KNOWN.get(key(file));
+    }
+
+    /** Note bytes just read from {@code file}, unless the server's view of it is already based on others. */
+    static void noteRead(Path file, byte[] bytes) {
+        KNOWN.putIfAbsent(key(file), crc(bytes));
+    }
+
+    /**
+     * Record that the watcher took over the change with CRC {@code crc}, read
+     * while the known CRC was {@code previous}; a write of ours since then
+     * stays known instead.
+     */
+    static void adopt(Path file, Long previous, long crc) {
+        if (previous == null) {
+            KNOWN.putIfAbsent(key(file), crc);
+        } else {
+            KNOWN.replace(key(file), previous, crc);
+        }
+    }
+
+    /** Drop what was known about a file another program deleted. */
+    static void forget(Path file) {
+        KNOWN.remove(key(file));
+    }
+
+    /**
+     * Refuse to replace {@code bytes}, just read from {@code file} under the
+     * user's lock, if they hold an external change the watcher has not taken
+     * over yet. Overwriting it would lose it: the watcher would then find our
+     * own bytes and never reload the change.
+     */
+    static void checkNoExternalChange(Path file, byte[] bytes) throws ExternalChangeException {
+        if (!watched) {
+            return;
+        }
+        Long known = KNOWN.get(key(file));
+        if (known != null && known != crc(bytes)) {
+            throw new ExternalChangeException(file);
+        }
+    }
+
+    /** Replace {@code target} with {@code bytes} without ever exposing a partial file. */
+    static void writeAtomically(Path target, byte[] bytes) throws IOException {
+        Path dir = target.toAbsolutePath().getParent();
+        // recorded before the move, so a watcher woken by it already knows the write is ours
+        KNOWN.put(key(target), crc(bytes));
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.wrap(bytes);
+                while (buf.hasRemaining()) {
+                    ch.write(buf);
+                }
+                if (FSYNC != FsyncPolicy.NONE) {
+                    ch.force(true);
+                }
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        if (FSYNC == FsyncPolicy.FULL) {
+            forceDirectory(dir);
+        }
+    }
+
+    private static void forceDirectory(Path dir) {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // not supported on every platform (e.g. Windows); the move already happened
+        }
+    }
+}
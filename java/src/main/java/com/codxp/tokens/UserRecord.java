@@ -0,0 +1,34 @@
+package com.codxp.tokens;
+
+/**
+ * Everything stored for one user: credentials, token counts and profile.
+ * Token counts are laid out category by category, {@link TokenLib#MINUTE_BUCKETS}
+ * entries each, in {@link TokenCategory} order.
+ */
+public class UserRecord {
+    public static final int CELLS = TokenCategory.values().length * TokenLib.MINUTE_BUCKETS.length;
+
+    public String username;
+    public String passwordHash = "";
+    public int[] tokens = new int[CELLS];
+    public String codUsername = "";
+    public String prestige = "";
+    public int level = 1;
+
+    public UserRecord() {
+    }
+
+    public UserRecord(String username) {
+        this.username = username;
+    }
+
+    public UserRecord copy() {
+        UserRecord r = new UserRecord(username);
+        r.passwordHash = passwordHash;
+        r.tokens = tokens.clone();
+        r.codUsername = codUsername;
+        r.prestige = prestige;
+        r.level = level;
+        return r;
+    }
+}
@@ -1,15 +1,16 @@
 package com.codxp.tokens;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.SignatureAlgorithm;
-import io.jsonwebtoken.security.Keys;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
 import org.mindrot.jbcrypt.BCrypt;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.security.Key;
 import java.time.*;
@@ -20,18 +21,89 @@ import java.util.*;
  * and JWT token handling.
  */
 public class UserService {
-    private static final ObjectMapper MAPPER = new ObjectMapper();
     private static final String TOKENS_FILE = resolveTokensFile();
-    private static final Key KEY = Keys.secretKeyFor(SignatureAlgorithm.HS256);
     private static final Duration TOKEN_TTL = Duration.ofHours(1);
+    private static final Duration REFRESH_TTL = Duration.ofDays(Long.getLong("codxp.jwt.refreshDays", 30));
+    private static final KeySet KEYS = keySet(System.getProperty("codxp.jwt.secret"));
+    private static final JwtParser PARSER = Jwts.parserBuilder()
+            .setSigningKeyResolver(new SigningKeyResolverAdapter() {
+                // JJWT 0.11 declares this with a raw JwsHeader; JwsHeader<?> would not override it
+                @Override
+                @SuppressWarnings("rawtypes")
+                public Key resolveSigningKey(JwsHeader header, Claims claims) {
+                    Key key = KEYS.resolve(header.getKeyId());
+                    if (key == null) {
+                        throw new JwtException("Unknown signing key " + header.getKeyId());
+                    }
+                    return key;
+                }
+            })
+            .build();
+    /** Claim marking a refresh token, which only {@code /refresh} accepts. */
+    private static final String TYPE_CLAIM = "typ";
+    private static final String REFRESH = "refresh";
+    /** Claim tying a refresh token to the password hash it was issued under. */
+    private static final String PASSWORD_CLAIM = "pwd";
+    private static final int BCRYPT_COST = Integer.getInteger("codxp.bcryptCost", 10);
+    private static final AuthCache AUTH_CACHE = new AuthCache(Integer.getInteger("codxp.authCacheSize", 10_000));
+    private static final Metrics.Histogram BCRYPT_HASH = Metrics.histogram("codxp_bcrypt_seconds",
+            "Time spent hashing or checking passwords.", "op=\"hash\"");
+    private static final Metrics.Histogram BCRYPT_CHECK = Metrics.histogram("codxp_bcrypt_seconds",
+            "Time spent hashing or checking passwords.", "op=\"check\"");
+    private static final Metrics.Histogram JWT_VERIFY = Metrics.histogram("codxp_jwt_verify_seconds",
+            "Time spent verifying JWT signatures on auth cache misses.", "");
 
-    private static Path userFile(String username) {
-        Path base = Paths.get(TOKENS_FILE).getParent();
-        if (base == null) base = Paths.get(".");
-        return base.resolve("data").resolve("users").resolve(username + ".json");
+    static {
+        Metrics.counterFunction("codxp_auth_cache_requests_total", "Verified-token cache lookups.",
+                "result=\"hit\"", AUTH_CACHE::hits);
+        Metrics.counterFunction("codxp_auth_cache_requests_total", "Verified-token cache lookups.",
+                "result=\"miss\"", AUTH_CACHE::misses);
+        Metrics.gauge("codxp_auth_cache_size", "Tokens currently held in the verified-token cache.", "", AUTH_CACHE::size);
+    }
+
+    private static final Set<String> ADMINS = parseAdmins(System.getProperty("codxp.admins", ""));
+
+    /**
+     * Keys from {@code codxp.jwt.secret} when set, which nodes sharing no data
+     * directory need; otherwise the rotating key set in {@code data/keys.json}.
+     */
+    private static KeySet keySet(String secret) {
+        if (secret != null && !secret.isEmpty()) {
+            return KeySet.fixed(secret);
+        }
+        try {
+            return KeySet.persisted(Storage.dataDir(TOKENS_FILE).resolve("keys.json"),
+                    Duration.ofDays(Long.getLong("codxp.jwt.rotateDays", 7)).toMillis(),
+                    REFRESH_TTL.toMillis());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load or create the JWT key set", e);
+        }
+    }
+
+    static UserStorage storage() {
+        return Storage.forTokensFile(TOKENS_FILE);
+    }
+
+    private static Set<String> parseAdmins(String list) {
+        Set<String> admins = new HashSet<>();
+        for (String name : list.split(",")) {
+            if (!name.isBlank()) {
+                admins.add(name.trim());
+            }
+        }
+        return admins;
+    }
+
+    /** Whether the user is listed in {@code codxp.admins} (comma separated). */
+    public static boolean isAdmin(String username) {
+        return username != null && ADMINS.contains(username);
     }
 
     public static String resolveTokensFile() {
+        String configured = System.getProperty("codxp.tokensFile");
+        if (configured != null) {
+            return configured;
+        }
         Path p = Paths.get("tokens.txt");
         if (!Files.exists(p)) {
             p = Paths.get("../tokens.txt");
@@ -39,94 +111,201 @@ public class UserService {
         return p.toString();
     }
 
+    /**
+     * Longest username or profile text accepted, in UTF-8 bytes. Every
+     * backend must be able to store it; the mapped one has fixed-size fields.
+     */
+    public static final int MAX_FIELD_BYTES = MappedUserStorage.MAX_STRING_BYTES;
+
+    /** Whether {@code value} fits a stored username or profile field. */
+    public static boolean fitsField(String value) {
+        return value == null || value.getBytes(StandardCharsets.UTF_8).length <= MAX_FIELD_BYTES;
+    }
+
     public static boolean register(String username, String password) throws IOException {
-        Path userPath = userFile(username);
-        if (Files.exists(userPath)) {
+        if (storage().load(username) != null) {
             return false;
         }
-        Files.createDirectories(userPath.getParent());
-        String hash = BCrypt.hashpw(password, BCrypt.gensalt());
-        Map<String, Object> data = new LinkedHashMap<>();
-        data.put("password_hash", hash);
-        Map<String, List<Integer>> tokens = new LinkedHashMap<>();
-        for (TokenCategory cat : TokenCategory.values()) {
-            tokens.put(cat.key(), Arrays.asList(0, 0, 0, 0));
-        }
-        data.put("tokens", tokens);
-        // default profile data
-        data.put("cod_username", "");
-        data.put("prestige", "");
-        data.put("level", 1);
-        try (OutputStream out = Files.newOutputStream(userPath)) {
-            MAPPER.writerWithDefaultPrettyPrinter().writeValue(out, data);
-        }
-        return true;
+        UserRecord record = new UserRecord(username);
+        record.passwordHash = hash(password);
+        // a concurrent registration may still win; create() reports that
+        return storage().create(record);
     }
 
     public static boolean validate(String username, String password) throws IOException {
-        Path userPath = userFile(username);
-        if (!Files.exists(userPath)) {
+        UserRecord record = storage().load(username);
+        if (record == null || record.passwordHash.isEmpty()) {
             return false;
         }
-        try (InputStream in = Files.newInputStream(userPath)) {
-            Map<String, Object> obj = MAPPER.readValue(in, new TypeReference<>() {});
-            Object hashObj = obj.get("password_hash");
-            if (!(hashObj instanceof String)) {
-                return false;
-            }
-            String hash = (String) hashObj;
-            return BCrypt.checkpw(password, hash);
+        String hash = record.passwordHash;
+        long start = System.nanoTime();
+        boolean ok = BCrypt.checkpw(password, hash);
+        BCRYPT_CHECK.observeSince(start);
+        if (!ok) {
+            return false;
+        }
+        if (costOf(hash) != BCRYPT_COST) {
+            rehash(username, hash, hash(password));
+        }
+        return true;
+    }
+
+    private static String hash(String password) {
+        long start = System.nanoTime();
+        String hash = BCrypt.hashpw(password, BCrypt.gensalt(BCRYPT_COST));
+        BCRYPT_HASH.observeSince(start);
+        return hash;
+    }
+
+    /** Cost factor encoded in a bcrypt hash such as {@code $2a$10$...}, or -1 if unreadable. */
+    static int costOf(String hash) {
+        try {
+            return Integer.parseInt(hash.substring(4, 6));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /** Replace the stored hash, unless the password was changed since it was read; a later login retries. */
+    private static void rehash(String username, String oldHash, String newHash) throws IOException {
+        try {
+            storage().update(username, r -> {
+                if (oldHash.equals(r.passwordHash)) {
+                    r.passwordHash = newHash;
+                }
+            });
+        } catch (UserFiles.ExternalChangeException e) {
+            // being reloaded; leave the old hash
         }
     }
 
     public static String issueToken(String username) {
+        KeySet.SigningKey key = KEYS.current();
         Date expiry = Date.from(Instant.now().plus(TOKEN_TTL));
         return Jwts.builder()
+                .setHeaderParam(JwsHeader.KEY_ID, key.kid)
+                .setSubject(username)
+                .setExpiration(expiry)
+                .signWith(key.key)
+                .compact();
+    }
+
+    /**
+     * A long-lived token that {@link #refresh} trades for a new access token
+     * without a password check. It names the user's current password hash,
+     * so changing the password revokes it.
+     */
+    public static String issueRefreshToken(String username) throws IOException {
+        UserRecord record = storage().load(username);
+        if (record == null) {
+            throw new NoSuchFileException(username);
+        }
+        KeySet.SigningKey key = KEYS.current();
+        Date expiry = Date.from(Instant.now().plus(REFRESH_TTL));
+        return Jwts.builder()
+                .setHeaderParam(JwsHeader.KEY_ID, key.kid)
                 .setSubject(username)
+                .claim(TYPE_CLAIM, REFRESH)
+                .claim(PASSWORD_CLAIM, passwordFingerprint(record.passwordHash))
                 .setExpiration(expiry)
-                .signWith(KEY)
+                .signWith(key.key)
                 .compact();
     }
 
+    private static String passwordFingerprint(String passwordHash) {
+        return KeySet.fingerprint(passwordHash.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Claims refreshClaims(String token) {
+        try {
+            Claims claims = PARSER.parseClaimsJws(token).getBody();
+            return REFRESH.equals(claims.get(TYPE_CLAIM)) ? claims : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /** The user a refresh token was issued to, checking only its signature and expiry. */
+    public static String refreshSubject(String token) {
+        Claims claims = token == null ? null : refreshClaims(token);
+        return claims == null ? null : claims.getSubject();
+    }
+
+    /**
+     * The user a refresh token may get a new access token for, or null if the
+     * token is invalid, expired, or predates the user's current password.
+     */
+    public static String refresh(String token) throws IOException {
+        Claims claims = token == null ? null : refreshClaims(token);
+        if (claims == null) {
+            return null;
+        }
+        UserRecord record = storage().load(claims.getSubject());
+        if (record == null || !passwordFingerprint(record.passwordHash).equals(claims.get(PASSWORD_CLAIM))) {
+            return null;
+        }
+        return record.username;
+    }
+
     public static String verifyToken(String token) {
+        String cached = AUTH_CACHE.get(token);
+        if (cached != null) {
+            return cached;
+        }
+        long start = System.nanoTime();
         try {
-            return Jwts.parserBuilder().setSigningKey(KEY).build()
-                    .parseClaimsJws(token).getBody().getSubject();
+            Claims claims = PARSER.parseClaimsJws(token).getBody();
+            if (claims.get(TYPE_CLAIM) != null) {
+                return null; // a refresh token is not an access token
+            }
+            String subject = claims.getSubject();
+            Date expiry = claims.getExpiration();
+            if (subject != null && expiry != null) {
+                AUTH_CACHE.put(token, subject, expiry.getTime());
+            }
+            return subject;
         } catch (Exception e) {
             return null;
+        } finally {
+            JWT_VERIFY.observeSince(start);
         }
     }
 
+    /** Hit/miss counters of the verified-token cache. */
+    public static Map<String, Object> authCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", AUTH_CACHE.hits());
+        stats.put("misses", AUTH_CACHE.misses());
+        stats.put("size", AUTH_CACHE.size());
+        return stats;
+    }
+
     public static String getTokensFile() {
         return TOKENS_FILE;
     }
 
     /** Read profile information for the given user. */
     public static Map<String, Object> getProfile(String username) throws IOException {
-        Path userPath = userFile(username);
-        Map<String, Object> obj;
-        try (InputStream in = Files.newInputStream(userPath)) {
-            obj = MAPPER.readValue(in, new TypeReference<>() {});
+        UserRecord record = storage().load(username);
+        if (record == null) {
+            throw new NoSuchFileException(username);
         }
         Map<String, Object> profile = new LinkedHashMap<>();
-        profile.put("cod_username", obj.getOrDefault("cod_username", ""));
-        profile.put("prestige", obj.getOrDefault("prestige", ""));
-        profile.put("level", obj.getOrDefault("level", 1));
+        profile.put("cod_username", record.codUsername);
+        profile.put("prestige", record.prestige);
+        profile.put("level", record.level);
         return profile;
     }
 
-    /** Update profile information for the given user. */
+    /** Update profile information for the given user; {@link NoSuchFileException} if it does not exist. */
     public static void updateProfile(String username, String codUsername, String prestige, int level) throws IOException {
-        Path userPath = userFile(username);
-        Map<String, Object> obj;
-        try (InputStream in = Files.newInputStream(userPath)) {
-            obj = MAPPER.readValue(in, new TypeReference<>() {});
-        }
-        obj.put("cod_username", codUsername);
-        obj.put("prestige", prestige);
-        obj.put("level", level);
-        try (OutputStream out = Files.newOutputStream(userPath)) {
-            MAPPER.writerWithDefaultPrettyPrinter().writeValue(out, obj);
+        UserRecord record = storage().updateExisting(username, r -> {
+            r.codUsername = codUsername;
+            r.prestige = prestige;
+            r.level = level;
+        });
+        if (record == null) {
+            throw new NoSuchFileException(username);
         }
     }
 }
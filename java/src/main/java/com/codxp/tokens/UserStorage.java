@@ -0,0 +1,53 @@
+package com.codxp.tokens;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Persistence backend for user records. Implementations must make
+ * {@link #create} and {@link #update} atomic per user; concurrent calls for
+ * different users should not block each other longer than necessary.
+ */
+public interface UserStorage extends Closeable {
+    /** Load the user's record, or return null if the user does not exist. */
+    UserRecord load(String username) throws IOException;
+
+    /** Store a new record; returns false without writing if the user already exists. */
+    boolean create(UserRecord record) throws IOException;
+
+    /**
+     * Apply {@code change} to the user's current record and persist the result
+     * as one atomic read-modify-write. A blank record is created if the user
+     * does not exist yet. Returns the record as written.
+     */
+    UserRecord update(String username, Consumer<UserRecord> change) throws IOException;
+
+    /**
+     * Like {@link #update}, but leaves a user that does not exist alone and
+     * returns null, so a write racing a delete cannot bring the user back.
+     */
+    UserRecord updateExisting(String username, Consumer<UserRecord> change) throws IOException;
+
+    /**
+     * Store each record in full, replacing whatever was stored for that user.
+     * Backends may apply the batch more cheaply than one {@link #update} per
+     * record; each record is still written atomically, but the batch as a
+     * whole is not.
+     */
+    default void putAll(List<UserRecord> records) throws IOException {
+        for (UserRecord record : records) {
+            update(record.username, r -> {
+                r.passwordHash = record.passwordHash;
+                r.tokens = record.tokens.clone();
+                r.codUsername = record.codUsername;
+                r.prestige = record.prestige;
+                r.level = record.level;
+            });
+        }
+    }
+
+    /** Names of all stored users. */
+    List<String> usernames() throws IOException;
+}
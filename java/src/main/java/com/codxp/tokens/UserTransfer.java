@@ -0,0 +1,179 @@
+package com.codxp.tokens;
+
+import com.fasterxml.jackson.core.*;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Streams every user out as NDJSON and back in. Each line is one user in
+ * the same shape as their {@code data/users/} file plus a {@code username}
+ * field. Both directions use Jackson's streaming generator and parser, so
+ * only one record (or one import batch) is in memory at a time.
+ */
+final class UserTransfer {
+    private static final JsonFactory FACTORY = Json.MAPPER.getFactory();
+
+    private UserTransfer() {
+    }
+
+    /** Called with each batch after it has been stored. */
+    interface BatchListener {
+        void stored(List<UserRecord> batch) throws IOException;
+    }
+
+    /** Write all users to {@code out}; returns the number written. */
+    static long export(UserStorage storage, OutputStream out) throws IOException {
+        return export(storage, storage.usernames(), out);
+    }
+
+    /** Write the named users to {@code out}, skipping unknown names; returns the number written. */
+    static long export(UserStorage storage, Collection<String> usernames, OutputStream out) throws IOException {
+        long n = 0;
+        try (JsonGenerator gen = FACTORY.createGenerator(out)) {
+            gen.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+            for (String username : usernames) {
+                UserRecord r = storage.load(username);
+                if (r == null) {
+                    continue; // deleted since the listing
+                }
+                write(gen, r);
+                n++;
+            }
+            if (n > 0) {
+                gen.writeRaw('\n');
+            }
+        }
+        return n;
+    }
+
+    private static void write(JsonGenerator gen, UserRecord r) throws IOException {
+        int buckets = TokenLib.MINUTE_BUCKETS.length;
+        gen.writeStartObject();
+        gen.writeStringField("username", r.username);
+        gen.writeStringField("password_hash", r.passwordHash);
+        gen.writeObjectFieldStart("tokens");
+        for (TokenCategory cat : TokenCategory.values()) {
+            gen.writeArrayFieldStart(cat.key());
+            for (int i = 0; i < buckets; i++) {
+                gen.writeNumber(r.tokens[cat.ordinal() * buckets + i]);
+            }
+            gen.writeEndArray();
+        }
+        gen.writeEndObject();
+        gen.writeStringField("cod_username", r.codUsername);
+        gen.writeStringField("prestige", r.prestige);
+        gen.writeNumberField("level", r.level);
+        gen.writeEndObject();
+    }
+
+    /**
+     * Read users from {@code in} and store them {@code batchSize} at a time,
+     * each replacing any existing record of that name. Returns the number
+     * imported. A malformed record, or one with a field longer than
+     * {@link UserService#MAX_FIELD_BYTES}, fails with {@link JsonParseException}
+     * before its batch is stored; batches stored before it stay stored.
+     */
+    static long importFrom(UserStorage storage, InputStream in, int batchSize, BatchListener listener) throws IOException {
+        long n = 0;
+        List<UserRecord> batch = new ArrayList<>(batchSize);
+        try (JsonParser p = FACTORY.createParser(in)) {
+            JsonToken t;
+            while ((t = p.nextToken()) != null) {
+                if (t != JsonToken.START_OBJECT) {
+                    throw new JsonParseException(p, "Expected one JSON object per line");
+                }
+                batch.add(read(p));
+                if (batch.size() == batchSize) {
+                    n += store(storage, batch, listener);
+                }
+            }
+        }
+        return n + store(storage, batch, listener);
+    }
+
+    private static int store(UserStorage storage, List<UserRecord> batch, BatchListener listener) throws IOException {
+        int size = batch.size();
+        if (size > 0) {
+            storage.putAll(batch);
+            listener.stored(batch);
+            batch.clear();
+        }
+        return size;
+    }
+
+    /** Read one user object; the parser is on its START_OBJECT. Unknown fields are skipped. */
+    private static UserRecord read(JsonParser p) throws IOException {
+        UserRecord r = new UserRecord();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            switch (field) {
+                case "username":
+                    r.username = p.getValueAsString();
+                    break;
+                case "password_hash":
+                    r.passwordHash = p.getValueAsString("");
+                    break;
+                case "cod_username":
+                    r.codUsername = p.getValueAsString("");
+                    break;
+                case "prestige":
+                    r.prestige = p.getValueAsString("");
+                    break;
+                case "level":
+                    r.level = p.getValueAsInt(1);
+                    break;
+                case "tokens":
+                    if (value != JsonToken.START_OBJECT) {
+                        throw new JsonParseException(p, "tokens must be an object");
+                    }
+                    readTokens(p, r.tokens);
+                    break;
+                default:
+                    p.skipChildren();
+            }
+        }
+        // the name becomes a file name in the JSON backend
+        if (r.username == null || r.username.isEmpty() || r.username.startsWith(".")
+                || r.username.indexOf('/') >= 0 || r.username.indexOf('\\') >= 0) {
+            throw new JsonParseException(p, "Missing or invalid username");
+        }
+        // checked here so that storage never fails partway through a batch
+        if (!UserService.fitsField(r.username) || !UserService.fitsField(r.passwordHash)
+                || !UserService.fitsField(r.codUsername) || !UserService.fitsField(r.prestige)) {
+            throw new JsonParseException(p, "Field longer than " + UserService.MAX_FIELD_BYTES + " bytes");
+        }
+        return r;
+    }
+
+    private static void readTokens(JsonParser p, int[] tokens) throws IOException {
+        int buckets = TokenLib.MINUTE_BUCKETS.length;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String key = p.getCurrentName();
+            p.nextToken();
+            TokenCategory cat = null;
+            for (TokenCategory c : TokenCategory.values()) {
+                if (c.key().equals(key)) {
+                    cat = c;
+                }
+            }
+            if (cat == null || p.currentToken() != JsonToken.START_ARRAY) {
+                p.skipChildren();
+                continue;
+            }
+            int i = 0;
+            while (p.nextToken() != JsonToken.END_ARRAY) {
+                if (i < buckets) {
+                    tokens[cat.ordinal() * buckets + i] = Math.max(0, Math.min(TokenStore.MAX_COUNT, p.getValueAsInt(0)));
+                }
+                i++;
+            }
+        }
+    }
+}
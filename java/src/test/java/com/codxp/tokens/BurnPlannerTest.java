@@ -0,0 +1,148 @@
+package com.codxp.tokens;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BurnPlannerTest {
+    /** Best {tokens, minutes} by trying every combination, or null if none covers the target. */
+    private static int[] bruteForce(int[] buckets, int[] have, int target, TokenLib.PlanObjective objective) {
+        int[] best = null;
+        int[] use = new int[have.length];
+        while (true) {
+            int tokens = 0;
+            int minutes = 0;
+            for (int i = 0; i < use.length; i++) {
+                tokens += use[i];
+                minutes += use[i] * buckets[i];
+            }
+            if (minutes >= target && (best == null || better(tokens, minutes, best, objective))) {
+                best = new int[] {tokens, minutes};
+            }
+            int i = 0;
+            while (i < use.length && use[i] == have[i]) {
+                use[i++] = 0;
+            }
+            if (i == use.length) {
+                return best;
+            }
+            use[i]++;
+        }
+    }
+
+    private static boolean better(int tokens, int minutes, int[] best, TokenLib.PlanObjective objective) {
+        if (objective == TokenLib.PlanObjective.FEWEST_TOKENS) {
+            return tokens < best[0] || tokens == best[0] && minutes < best[1];
+        }
+        return minutes < best[1] || minutes == best[1] && tokens < best[0];
+    }
+
+    private static void check(BurnPlanner planner, int[] buckets, int[] have, int target,
+                              TokenLib.PlanObjective objective) {
+        TokenLib.Plan plan = planner.plan(have, target, objective);
+        String what = objective + " " + target + " min from " + Arrays.toString(have);
+        int tokens = 0;
+        int minutes = 0;
+        for (int i = 0; i < have.length; i++) {
+            assertTrue(plan.use[i] >= 0 && plan.use[i] <= have[i], what + ": uses tokens it does not have");
+            tokens += plan.use[i];
+            minutes += plan.use[i] * buckets[i];
+        }
+        assertEquals(tokens, plan.tokens, what + ": tokens");
+        assertEquals(minutes, plan.minutes, what + ": minutes");
+        int[] best = bruteForce(buckets, have, target, objective);
+        if (best == null) {
+            assertFalse(plan.covered, what + ": covered");
+            assertArrayEquals(have, plan.use, what + ": should burn everything");
+        } else {
+            assertTrue(plan.covered, what + ": covered");
+            assertEquals(best[0], plan.tokens, what + ": tokens");
+            assertEquals(best[1], plan.minutes, what + ": minutes");
+        }
+    }
+
+    @Test
+    void matchesBruteForceOnRandomInventories() {
+        int[] buckets = TokenLib.MINUTE_BUCKETS;
+        BurnPlanner planner = new BurnPlanner(buckets);
+        Random random = new Random(42);
+        for (int round = 0; round < 300; round++) {
+            int[] have = new int[buckets.length];
+            int total = 0;
+            for (int i = 0; i < have.length; i++) {
+                have[i] = random.nextInt(5);
+                total += have[i] * buckets[i];
+            }
+            int target = random.nextInt(total + 60);
+            for (TokenLib.PlanObjective objective : TokenLib.PlanObjective.values()) {
+                check(planner, buckets, have, target, objective);
+            }
+        }
+    }
+
+    @Test
+    void matchesBruteForceWithUnevenBucketSizes() {
+        int[] buckets = {20, 50, 70};
+        BurnPlanner planner = new BurnPlanner(buckets);
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            int[] have = {random.nextInt(6), random.nextInt(4), random.nextInt(4)};
+            int target = random.nextInt(400);
+            for (TokenLib.PlanObjective objective : TokenLib.PlanObjective.values()) {
+                check(planner, buckets, have, target, objective);
+            }
+        }
+    }
+
+    @Test
+    void targetZeroBurnsNothing() {
+        BurnPlanner planner = new BurnPlanner(TokenLib.MINUTE_BUCKETS);
+        for (TokenLib.PlanObjective objective : TokenLib.PlanObjective.values()) {
+            TokenLib.Plan plan = planner.plan(new int[] {3, 1, 0, 2}, 0, objective);
+            assertTrue(plan.covered);
+            assertEquals(0, plan.tokens);
+            assertEquals(0, plan.minutes);
+        }
+    }
+
+    @Test
+    void targetAboveInventoryBurnsEverything() {
+        BurnPlanner planner = new BurnPlanner(TokenLib.MINUTE_BUCKETS);
+        int[] have = {1, 2, 0, 1};
+        for (TokenLib.PlanObjective objective : TokenLib.PlanObjective.values()) {
+            TokenLib.Plan plan = planner.plan(have, 500, objective);
+            assertFalse(plan.covered);
+            assertArrayEquals(have, plan.use);
+            assertEquals(4, plan.tokens);
+            assertEquals(135, plan.minutes);
+        }
+    }
+
+    @Test
+    void risingTargetsReuseAndGrowTheSameInventory() {
+        int[] buckets = TokenLib.MINUTE_BUCKETS;
+        BurnPlanner planner = new BurnPlanner(buckets);
+        int[] have = {4, 3, 2, 3};
+        for (int target = 0; target <= 400; target += 5) {
+            for (TokenLib.PlanObjective objective : TokenLib.PlanObjective.values()) {
+                check(planner, buckets, have, target, objective);
+            }
+        }
+    }
+
+    @Test
+    void objectivesDisagreeWhereTheyShould() {
+        BurnPlanner planner = new BurnPlanner(TokenLib.MINUTE_BUCKETS);
+        // 45 minutes: one 60-minute token is fewest, three 15-minute tokens waste nothing
+        int[] have = {4, 0, 0, 1};
+        TokenLib.Plan fewest = planner.plan(have, 45, TokenLib.PlanObjective.FEWEST_TOKENS);
+        assertEquals(1, fewest.tokens);
+        assertEquals(60, fewest.minutes);
+        TokenLib.Plan leastWaste = planner.plan(have, 45, TokenLib.PlanObjective.LEAST_WASTE);
+        assertEquals(3, leastWaste.tokens);
+        assertEquals(45, leastWaste.minutes);
+    }
+}
@@ -0,0 +1,90 @@
+package com.codxp.tokens;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LeaderboardTest {
+    /** Counts with {@code n} tokens of the given minutes in one category. */
+    private static int[] counts(TokenCategory cat, int minutes, int n) {
+        int[] counts = new int[UserRecord.CELLS];
+        counts[TokenStore.cell(cat, TokenLib.bucketIndex(minutes))] = n;
+        return counts;
+    }
+
+    private static void change(Leaderboard board, String username, long version, int[] counts) {
+        board.tokensChanged(username, null, TokenStore.State.of(version, counts));
+    }
+
+    @Test
+    void ranksPagesAndStandingsFollowUpdates() {
+        Leaderboard board = new Leaderboard();
+        change(board, "ann", 1, counts(TokenCategory.REGULAR, 60, 2));      // 120
+        change(board, "bob", 1, counts(TokenCategory.WEAPON, 30, 1));       // 30
+        change(board, "cat", 1, counts(TokenCategory.BATTLEPASS, 15, 4));   // 60
+        List<RankedIndex.Ranked> page = board.page(Leaderboard.GRAND, 1, 10);
+        assertEquals(List.of("ann", "cat", "bob"), page.stream().map(r -> r.name).toList());
+        assertEquals(120, page.get(0).score);
+
+        change(board, "bob", 2, counts(TokenCategory.WEAPON, 60, 3));       // 180
+        page = board.page(Leaderboard.GRAND, 2, 10);
+        assertEquals(List.of("ann", "cat"), page.stream().map(r -> r.name).toList());
+        assertEquals(2, page.get(0).rank);
+
+        // {rank, users, minutes, percentile below}
+        assertArrayEquals(new long[] {1, 3, 180, 66}, board.standing(Leaderboard.GRAND, "bob"));
+        assertArrayEquals(new long[] {3, 3, 60, 0}, board.standing(Leaderboard.GRAND, "cat"));
+        int weapon = Leaderboard.board("weapon");
+        assertArrayEquals(new long[] {1, 3, 180, 66}, board.standing(weapon, "bob"));
+        assertArrayEquals(new long[] {2, 3, 0, 0}, board.standing(weapon, "ann"));
+        assertNull(board.standing(Leaderboard.GRAND, "dan"));
+    }
+
+    @Test
+    void statsGiveNearestRankPercentiles() {
+        Leaderboard board = new Leaderboard();
+        for (int i = 1; i <= 10; i++) {
+            change(board, "u" + i, 1, counts(TokenCategory.REGULAR, 15, i)); // 15, 30, ... 150
+        }
+        long[] stats = board.stats(Leaderboard.GRAND, 0, 50, 90, 100);
+        assertEquals(10, stats[0]);
+        assertEquals(15 * 55, stats[1]);
+        assertEquals(15, stats[2]);
+        assertEquals(75, stats[3]);
+        assertEquals(135, stats[4]);
+        assertEquals(150, stats[5]);
+    }
+
+    @Test
+    void olderVersionsNeverOverwriteNewerOnes() {
+        Leaderboard board = new Leaderboard();
+        change(board, "ann", 5, counts(TokenCategory.REGULAR, 60, 5));
+        change(board, "ann", 3, counts(TokenCategory.REGULAR, 60, 1));
+        board.set("ann", 4, counts(TokenCategory.REGULAR, 60, 2));
+        assertEquals(300, board.standing(Leaderboard.GRAND, "ann")[2]);
+        change(board, "ann", 6, counts(TokenCategory.REGULAR, 60, 7));
+        assertEquals(420, board.standing(Leaderboard.GRAND, "ann")[2]);
+    }
+
+    @Test
+    void removalsDropUsersAndIgnoreLateChanges() {
+        Leaderboard board = new Leaderboard();
+        change(board, "ann", 1, counts(TokenCategory.REGULAR, 60, 1));
+        change(board, "bob", 1, counts(TokenCategory.REGULAR, 60, 2));
+        board.remove("bob", 2);
+        assertNull(board.standing(Leaderboard.GRAND, "bob"));
+        assertArrayEquals(new long[] {1, 1, 60, 0}, board.standing(Leaderboard.GRAND, "ann"));
+
+        // a listener that ran late for the deleted user is ignored, a reload after it is not
+        change(board, "bob", 1, counts(TokenCategory.REGULAR, 60, 9));
+        assertNull(board.standing(Leaderboard.GRAND, "bob"));
+        board.set("bob", 2, counts(TokenCategory.REGULAR, 60, 3));
+        assertEquals(1, board.standing(Leaderboard.GRAND, "bob")[0]);
+
+        board.retain(name -> !name.equals("ann"));
+        assertNull(board.standing(Leaderboard.GRAND, "ann"));
+        assertEquals(1, board.stats(Leaderboard.GRAND)[0]);
+    }
+}
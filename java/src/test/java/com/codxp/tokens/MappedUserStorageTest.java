@@ -0,0 +1,104 @@
+package com.codxp.tokens;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedUserStorageTest {
+    @TempDir
+    Path dir;
+
+    private static UserRecord user(String name, int tokens, String prestige) {
+        UserRecord r = new UserRecord(name);
+        r.passwordHash = "hash-" + name;
+        Arrays.fill(r.tokens, tokens);
+        r.prestige = prestige;
+        r.level = tokens + 1;
+        return r;
+    }
+
+    /**
+     * A data file as it was before three writes, and the journal of those
+     * writes, as a crash before the mapping reached disk would leave them.
+     */
+    private byte[][] crashAfterThreeWrites() throws IOException {
+        Path db = dir.resolve("live.db");
+        Path journal = dir.resolve("live.journal");
+        try (MappedUserStorage storage = new MappedUserStorage(db, journal)) {
+            byte[] before = Files.readAllBytes(db);
+            storage.create(user("ann", 1, "a"));
+            storage.create(user("bob", 2, "b"));
+            storage.update("ann", r -> r.prestige = "a2");
+            byte[] entries = Files.readAllBytes(journal);
+            assertEquals(0, entries.length % 3, "three equal journal entries");
+            return new byte[][] {before, entries};
+        }
+    }
+
+    private MappedUserStorage reopen(byte[] data, byte[] journal) throws IOException {
+        Path db = dir.resolve("crashed.db");
+        Path journalFile = dir.resolve("crashed.journal");
+        Files.write(db, data);
+        Files.write(journalFile, journal);
+        return new MappedUserStorage(db, journalFile);
+    }
+
+    @Test
+    void replaysACompleteJournal() throws IOException {
+        byte[][] crash = crashAfterThreeWrites();
+        try (MappedUserStorage storage = reopen(crash[0], crash[1])) {
+            UserRecord ann = storage.load("ann");
+            assertEquals("a2", ann.prestige);
+            assertEquals("hash-ann", ann.passwordHash);
+            assertArrayEquals(user("ann", 1, "a").tokens, ann.tokens);
+            assertEquals(2, ann.level);
+            assertEquals("b", storage.load("bob").prestige);
+            assertEquals(2, storage.usernames().size());
+        }
+        assertEquals(0, Files.size(dir.resolve("crashed.journal")), "journal cleared once replayed");
+    }
+
+    @Test
+    void ignoresATornLastRecord() throws IOException {
+        byte[][] crash = crashAfterThreeWrites();
+        int entry = crash[1].length / 3;
+        byte[] torn = Arrays.copyOf(crash[1], 2 * entry + entry / 2);
+        try (MappedUserStorage storage = reopen(crash[0], torn)) {
+            assertEquals("a", storage.load("ann").prestige, "the torn update was never applied");
+            assertEquals("b", storage.load("bob").prestige);
+        }
+    }
+
+    @Test
+    void stopsAtARecordWhoseChecksumFails() throws IOException {
+        byte[][] crash = crashAfterThreeWrites();
+        int entry = crash[1].length / 3;
+        byte[] corrupt = crash[1].clone();
+        corrupt[entry + entry / 2] ^= 0x5a; // inside bob's record
+        try (MappedUserStorage storage = reopen(crash[0], corrupt)) {
+            assertEquals("a", storage.load("ann").prestige);
+            assertNull(storage.load("bob"));
+            assertEquals(1, storage.usernames().size());
+        }
+    }
+
+    @Test
+    void replayedDataSurvivesAnotherReopen() throws IOException {
+        byte[][] crash = crashAfterThreeWrites();
+        reopen(crash[0], crash[1]).close();
+        try (MappedUserStorage storage = new MappedUserStorage(dir.resolve("crashed.db"), dir.resolve("crashed.journal"))) {
+            assertEquals("a2", storage.load("ann").prestige);
+            assertEquals("b", storage.load("bob").prestige);
+            storage.update("bob", r -> r.tokens[0] = 42);
+        }
+        try (MappedUserStorage storage = new MappedUserStorage(dir.resolve("crashed.db"), dir.resolve("crashed.journal"))) {
+            assertEquals(42, storage.load("bob").tokens[0]);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.codxp.tokens;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RankedIndexTest {
+    private static final Comparator<Map.Entry<String, Long>> RANK_ORDER =
+            Comparator.<Map.Entry<String, Long>>comparingLong(e -> -e.getValue()).thenComparing(Map.Entry::getKey);
+
+    /** Check every query of {@code index} against a sort of {@code model}. */
+    private static void verify(RankedIndex index, Map<String, Long> model) {
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(model.entrySet());
+        sorted.sort(RANK_ORDER);
+        assertEquals(sorted.size(), index.size());
+        assertEquals(model.values().stream().mapToLong(Long::longValue).sum(), index.sum());
+        for (int i = 0; i < sorted.size(); i++) {
+            Map.Entry<String, Long> e = sorted.get(i);
+            assertEquals(i + 1, index.rank(e.getKey()), "rank of " + e.getKey());
+            assertEquals(e.getValue(), index.score(e.getKey()));
+            assertEquals((long) e.getValue(), index.scoreAt(i + 1), "score at " + (i + 1));
+            long below = model.values().stream().filter(v -> v < e.getValue()).count();
+            assertEquals(below, index.countBelow(e.getValue()), "below " + e.getValue());
+        }
+        for (int from = 1; from <= sorted.size() + 1; from += 3) {
+            List<RankedIndex.Ranked> page = index.page(from, 5);
+            assertEquals(Math.max(0, Math.min(5, sorted.size() - from + 1)), page.size(), "page from " + from);
+            for (int i = 0; i < page.size(); i++) {
+                RankedIndex.Ranked r = page.get(i);
+                Map.Entry<String, Long> e = sorted.get(from - 1 + i);
+                assertEquals(from + i, r.rank);
+                assertEquals(e.getKey(), r.name);
+                assertEquals((long) e.getValue(), r.score);
+            }
+        }
+    }
+
+    @Test
+    void matchesASortedModelThroughUpdatesAndRemovals() {
+        RankedIndex index = new RankedIndex();
+        Map<String, Long> model = new HashMap<>();
+        Random random = new Random(1);
+        for (int round = 0; round < 40; round++) {
+            for (int op = 0; op < 25; op++) {
+                String name = "u" + random.nextInt(60);
+                if (random.nextInt(4) == 0) {
+                    index.remove(name);
+                    model.remove(name);
+                } else {
+                    // few distinct scores, so ties broken by name are common
+                    long score = random.nextInt(20) * 15L;
+                    index.put(name, score);
+                    model.put(name, score);
+                }
+            }
+            verify(index, model);
+        }
+    }
+
+    @Test
+    void tiesAreRankedByName() {
+        RankedIndex index = new RankedIndex();
+        index.put("carol", 60);
+        index.put("alice", 60);
+        index.put("bob", 90);
+        assertEquals(1, index.rank("bob"));
+        assertEquals(2, index.rank("alice"));
+        assertEquals(3, index.rank("carol"));
+    }
+
+    @Test
+    void unknownNamesHaveNoRank() {
+        RankedIndex index = new RankedIndex();
+        index.put("alice", 30);
+        index.remove("alice");
+        index.remove("nobody");
+        assertEquals(0, index.rank("alice"));
+        assertNull(index.score("alice"));
+        assertEquals(0, index.size());
+        assertEquals(0, index.sum());
+        assertTrue(index.page(1, 10).isEmpty());
+    }
+}
@@ -0,0 +1,66 @@
+package com.codxp.tokens;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    /** A key other than {@code key} that lands in the same stripe. */
+    private static String sameStripe(String key) {
+        for (int i = 0; ; i++) {
+            String other = "k" + i;
+            if (!other.equals(key) && (other.hashCode() & 0x7fffffff) % 16 == (key.hashCode() & 0x7fffffff) % 16) {
+                return other;
+            }
+        }
+    }
+
+    @Test
+    void allowsABurstThenRefusesWithTheWait() {
+        RateLimiter limiter = new RateLimiter("test-burst", 1, 3, 1000);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire("ann"), "request " + (i + 1) + " of the burst");
+        }
+        long wait = limiter.acquire("ann");
+        assertTrue(wait > 0 && wait <= SECOND, "wait " + wait);
+        assertEquals(0, limiter.acquire("bob"), "other keys have their own bucket");
+    }
+
+    @Test
+    void refillsAtTheConfiguredRate() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter("test-refill", 50, 2, 1000); // one every 20 ms
+        assertEquals(0, limiter.acquire("ann"));
+        assertEquals(0, limiter.acquire("ann"));
+        long wait = limiter.acquire("ann");
+        assertTrue(wait > 0 && wait <= 20_000_000, "wait " + wait);
+        Thread.sleep(wait / 1_000_000 + 5);
+        assertEquals(0, limiter.acquire("ann"), "one token back after the wait");
+        assertTrue(limiter.acquire("ann") > 0, "but only one");
+        Thread.sleep(60);
+        assertEquals(0, limiter.acquire("ann"));
+        assertEquals(0, limiter.acquire("ann"), "a full burst after a long pause");
+        assertTrue(limiter.acquire("ann") > 0);
+    }
+
+    @Test
+    void aFullStripeRefusesNewKeysInsteadOfTrackingNone() {
+        RateLimiter limiter = new RateLimiter("test-full", 1, 5, 16); // one bucket per stripe
+        assertEquals(0, limiter.acquire("ann"));
+        String other = sameStripe("ann");
+        assertEquals(SECOND, limiter.acquire(other), "stripe holds a bucket still in use");
+        assertEquals(1, limiter.size());
+        assertEquals(0, limiter.acquire("ann"), "the tracked key keeps its bucket");
+    }
+
+    @Test
+    void aFullStripeMakesRoomByDroppingIdleBuckets() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter("test-idle", 100, 1, 16);
+        assertEquals(0, limiter.acquire("ann"));
+        Thread.sleep(30); // ann's bucket is full again, so it carries no state
+        String other = sameStripe("ann");
+        assertEquals(0, limiter.acquire(other));
+        assertEquals(1, limiter.size());
+    }
+}
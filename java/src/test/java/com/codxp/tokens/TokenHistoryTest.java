@@ -0,0 +1,118 @@
+package com.codxp.tokens;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.SortedMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenHistoryTest {
+    private static final long DAY = 86_400_000L;
+
+    @TempDir
+    Path dir;
+
+    private static TokenStore.State state(long version, TokenCategory cat, int minutes, int n) {
+        int[] counts = new int[UserRecord.CELLS];
+        counts[TokenStore.cell(cat, TokenLib.bucketIndex(minutes))] = n;
+        return TokenStore.State.of(version, counts);
+    }
+
+    /** Sum of every period in a query result. */
+    private static long[] total(SortedMap<Long, long[]> periods) {
+        long[] sum = new long[TokenCategory.values().length * 2];
+        for (long[] slots : periods.values()) {
+            for (int i = 0; i < sum.length; i++) {
+                sum[i] += slots[i];
+            }
+        }
+        return sum;
+    }
+
+    private static long added(long[] slots, TokenCategory cat) {
+        return slots[cat.ordinal() * 2];
+    }
+
+    private static long used(long[] slots, TokenCategory cat) {
+        return slots[cat.ordinal() * 2 + 1];
+    }
+
+    /** Append a record to the log directly, as a crash after the last snapshot would leave it. */
+    private void appendRaw(long timestamp, TokenCategory cat, int minutes, int delta) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(TokenHistory.RECORD_SIZE);
+        record.putLong(timestamp).put((byte) cat.ordinal()).put((byte) TokenLib.bucketIndex(minutes))
+                .putShort((short) 0).putInt(delta);
+        Files.write(dir.resolve("ann.log"), record.array(), StandardOpenOption.APPEND);
+    }
+
+    /** Two changes recorded and snapshotted, then a tail of two more records and a torn one. */
+    private long writeSnapshotAndTail() throws IOException {
+        try (TokenHistory history = new TokenHistory(dir)) {
+            history.tokensChanged("ann", state(0, TokenCategory.REGULAR, 60, 0), state(1, TokenCategory.REGULAR, 60, 2));
+            history.tokensChanged("ann", state(1, TokenCategory.REGULAR, 60, 2), state(2, TokenCategory.REGULAR, 60, 1));
+        }
+        assertTrue(Files.exists(dir.resolve("ann.snap")));
+        long later = System.currentTimeMillis() + 1000;
+        appendRaw(later, TokenCategory.WEAPON, 30, 3);
+        appendRaw(later + 1, TokenCategory.WEAPON, 30, -1);
+        Files.write(dir.resolve("ann.log"), new byte[7], StandardOpenOption.APPEND);
+        return later;
+    }
+
+    private static void assertTotals(long[] sum) {
+        assertEquals(120, added(sum, TokenCategory.REGULAR));
+        assertEquals(60, used(sum, TokenCategory.REGULAR));
+        assertEquals(90, added(sum, TokenCategory.WEAPON));
+        assertEquals(30, used(sum, TokenCategory.WEAPON));
+        assertEquals(0, added(sum, TokenCategory.BATTLEPASS));
+    }
+
+    @Test
+    void loadsTheSnapshotAndReplaysOnlyTheTail() throws IOException {
+        long later = writeSnapshotAndTail();
+        try (TokenHistory history = new TokenHistory(dir)) {
+            assertTotals(total(history.query("ann", 0, later + DAY, true)));
+            assertTotals(total(history.query("ann", 0, later + DAY, false)));
+        }
+        assertEquals(4L * TokenHistory.RECORD_SIZE, Files.size(dir.resolve("ann.log")), "torn record dropped");
+    }
+
+    @Test
+    void rebuildsFromTheWholeLogWithoutASnapshot() throws IOException {
+        long later = writeSnapshotAndTail();
+        Files.delete(dir.resolve("ann.snap"));
+        try (TokenHistory history = new TokenHistory(dir)) {
+            assertTotals(total(history.query("ann", 0, later + DAY, true)));
+        }
+    }
+
+    @Test
+    void laterChangesAppendAfterTheReplayedTail() throws IOException {
+        long later = writeSnapshotAndTail();
+        try (TokenHistory history = new TokenHistory(dir)) {
+            history.tokensChanged("ann", state(2, TokenCategory.BATTLEPASS, 15, 0), state(3, TokenCategory.BATTLEPASS, 15, 4));
+        }
+        try (TokenHistory history = new TokenHistory(dir)) {
+            long[] sum = total(history.query("ann", 0, later + DAY, true));
+            assertEquals(120, added(sum, TokenCategory.REGULAR));
+            assertEquals(90, added(sum, TokenCategory.WEAPON));
+            assertEquals(60, added(sum, TokenCategory.BATTLEPASS));
+            // the new record is stamped no earlier than the tail, so hour scans still find it
+            assertEquals(60, added(total(history.query("ann", later, later + DAY, false)), TokenCategory.BATTLEPASS));
+        }
+    }
+
+    @Test
+    void usersWithoutHistoryHaveNoFiles() throws IOException {
+        try (TokenHistory history = new TokenHistory(dir)) {
+            assertTrue(history.query("bob", 0, Long.MAX_VALUE, true).isEmpty());
+        }
+        assertFalse(Files.exists(dir.resolve("bob.log")));
+    }
+}
@@ -0,0 +1,104 @@
+package com.codxp.tokens;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenStoreTest {
+    @TempDir
+    Path dir;
+
+    private TokenStore store;
+
+    @BeforeEach
+    void open() {
+        store = new TokenStore(dir.resolve("tokens.json").toString(), 3_600_000);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        store.close();
+    }
+
+    /** The adjusted totals must be exactly what a recompute from the counts gives. */
+    private static void assertConsistent(TokenStore.State s) {
+        TokenStore.State fresh = TokenStore.State.of(s.version, s.counts);
+        assertArrayEquals(fresh.minutes, s.minutes, "per-category minutes");
+        assertEquals(fresh.grandMinutes, s.grandMinutes, "grand total");
+    }
+
+    @Test
+    void deltaTotalsMatchARecompute() throws IOException {
+        Random random = new Random(3);
+        TokenStore.State s = store.state("ann");
+        for (int round = 0; round < 500; round++) {
+            int k = 1 + random.nextInt(4);
+            int[] cells = new int[k];
+            int[] deltas = new int[k];
+            for (int i = 0; i < k; i++) {
+                cells[i] = random.nextInt(UserRecord.CELLS);
+                deltas[i] = random.nextInt(21) - 8;
+            }
+            TokenStore.State next = store.applyDeltas("ann", cells, deltas);
+            assertEquals(s.version + 1, next.version);
+            assertConsistent(next);
+            for (int count : next.counts) {
+                assertTrue(count >= 0);
+            }
+            s = next;
+        }
+    }
+
+    @Test
+    void clampingAdjustsTotalsByWhatWasApplied() throws IOException {
+        int cell = TokenStore.cell(TokenCategory.WEAPON, TokenLib.bucketIndex(60));
+        TokenStore.State s = store.applyDeltas("ann", new int[] {cell}, new int[] {5});
+        assertEquals(300, s.minutes[TokenCategory.WEAPON.ordinal()]);
+
+        s = store.applyDeltas("ann", new int[] {cell, cell}, new int[] {-9, 2});
+        assertEquals(2, s.counts[cell], "the floor at zero applies per delta");
+        assertConsistent(s);
+
+        s = store.applyDeltas("ann", new int[] {cell, cell}, new int[] {Integer.MAX_VALUE, Integer.MAX_VALUE});
+        assertEquals(TokenStore.MAX_COUNT, s.counts[cell]);
+        assertConsistent(s);
+
+        s = store.applyDeltas("ann", new int[] {cell}, new int[] {Integer.MIN_VALUE});
+        assertEquals(0, s.counts[cell]);
+        assertConsistent(s);
+    }
+
+    @Test
+    void everyCounterAtTheCapStillFitsTheTotals() throws IOException {
+        int[] cells = new int[UserRecord.CELLS];
+        int[] deltas = new int[UserRecord.CELLS];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = i;
+            deltas[i] = Integer.MAX_VALUE;
+        }
+        TokenStore.State s = store.applyDeltas("ann", cells, deltas);
+        assertConsistent(s);
+        long expected = 0;
+        for (int i = 0; i < cells.length; i++) {
+            expected += (long) TokenStore.MAX_COUNT * TokenLib.MINUTE_BUCKETS[i % TokenLib.MINUTE_BUCKETS.length];
+        }
+        assertEquals(expected, s.grandMinutes);
+    }
+
+    @Test
+    void versionedDeltasApplyOnlyAtTheExpectedVersion() throws IOException {
+        int cell = TokenStore.cell(TokenCategory.REGULAR, 0);
+        long version = store.state("ann").version;
+        assertNull(store.applyDeltasIfVersion("ann", new int[] {cell}, new int[] {1}, version + 1));
+        TokenStore.State s = store.applyDeltasIfVersion("ann", new int[] {cell}, new int[] {1}, version);
+        assertEquals(1, s.counts[cell]);
+        assertConsistent(s);
+    }
+}